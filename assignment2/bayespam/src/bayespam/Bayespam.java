@@ -1,104 +1,27 @@
 package bayespam;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class Bayespam
 {
     // This defines the two types of messages we have.
-    static enum MessageType
+    public static enum MessageType
     {
         NORMAL, SPAM
     }
-    /// This defines the two types of probabilities we have
-    static enum ProbType
-    {
-        PRIORI, CONDITIONAL
-    }
-    
-    /// This defines the two types of message sets we have
-    static enum SetType
-    {
-    	TRAIN, TEST
-    }
-    
-    // This a class with two counters (for regular and for spam)
-    static class Multiple_Counter
-    {
-        int counter_spam    = 0;
-        int counter_regular = 0;
-
-        // Increase one of the counters by one
-        public void incrementCounter(MessageType type)
-        {
-            if ( type == MessageType.NORMAL ){
-                ++counter_regular;
-            } else {
-                ++counter_spam;
-            }
-        }
-    }
-    
-    /// Class for saving the conditional and a priori for every word
-        static class Multiple_Prob
-    {
-        double conditional_regular = 0;
-        double conditional_spam = 0;
-        double priori_regular = 0;
-        double priori_spam = 0;
-
-        
-        public void setProb(MessageType type, ProbType probtype, double probability)
-        {
-            if ( type == MessageType.NORMAL ){
-                if ( probtype == ProbType.PRIORI)
-                {
-					priori_regular = probability;
-				} else
-				{
-					conditional_regular = probability;
-				}
-            } else {
-				if ( probtype == ProbType.PRIORI)
-                {
-					priori_spam = probability;
-				} else
-				{
-					conditional_spam = probability;
-				}
-            }
-        }
-    }
-    
-    /// Class for saving the probabilities of whether a message is a regular or a spam message
-    static class MessageProbs
-    {
-    	double regularProb = Math.log(aPrioriRegularMessage);
-    	double spamProb = Math.log(aPrioriSpamMessage);
-    	
-    	public void calcMessageProb(String word)
-    	{
-    		Multiple_Prob mp = probs.get(word);
-    		if(mp != null)
-    		{
-    			regularProb += Math.log(mp.conditional_regular * mp.priori_regular / aPrioriRegularMessage);
-    			spamProb 	+= Math.log(mp.conditional_spam * mp.priori_spam / aPrioriSpamMessage);
-    			
-    		}
-    	}
-    }
     
     // Listings of the two subdirectories (regular/ and spam/)
     private static File[] listing_regular = new File[0];
     private static File[] listing_spam = new File[0];
     
     // A hash table for the vocabulary (word searching is very fast in a hash table)
-    private static Hashtable <String, Multiple_Counter> vocab = new Hashtable <String, Multiple_Counter> ();
-	/// A hash table for the vocabulary and their probabilities
-	private static Hashtable <String, Multiple_Prob> probs = new Hashtable <String, Multiple_Prob> ();
-    /// A hash table for the testset containing probabilities per file.
-	private static Hashtable <Integer, MessageProbs> testRegular 	= new Hashtable <>();
-	private static Hashtable <Integer, MessageProbs> testSpam 		= new Hashtable <>();
+    /// The vocabulary also holds the counts and the log probabilities of every word
+    private static Vocabulary vocab = new Vocabulary();
+    /// The classifier built from the vocabulary after training
+    private static SpamClassifier classifier;
 	
 	/// Variables containing the amount of messages and types of messages
 	static double nMessagesRegular;
@@ -108,23 +31,52 @@ public class Bayespam
     /// Variables containing the apriori probabilities for spam and regular messages
     static double aPrioriSpamMessage;
     static double aPrioriRegularMessage;
+    static double logAPrioriSpam;
+    static double logAPrioriRegular;
+    
+    /// Options of the feature extractor used for training (FeatureExtractor.HEADERS, FeatureExtractor.ngrams())
+    static int features = 0;
+    
+    /// Probability that replaces zero probabilities (1 / number of words)
+    static double smallVal;
+    
+    /// Words must be longer than this after cleaning to be part of the vocabulary
+    static int wordSizeThreshold = 4;
+    
+    /// Words (or n-grams) that occur less than this in the training messages are removed from the vocabulary
+    static int minCount = 1;
+    
+    /// When more than 0, training keeps at most this many words and counts them in a count-min sketch
+    /// (see BoundedVocabulary), so the memory used for training does not grow with the corpus
+    static int maxVocab = 0;
+    
+    /// When more than 0, rare words are pruned while training with lossy counting in buckets of this
+    /// many words (see LossyVocabulary)
+    static int lossyBucket = 0;
+    
+    /// Where the words of the training messages are counted before they are put into the vocabulary
+    private static WordCounts counts;
+    
+    /// Number of worker threads used to read the training messages
+    static int nThreads = Runtime.getRuntime().availableProcessors();
+    
+    /// Number of threads that load the training messages for the pipeline (see TrainingPipeline)
+    static final int READERS = 2;
+    
+    /// Where training and testing are measured (see ClassifierMetrics), or null to measure nothing
+    static ClassifierMetrics metrics = null;
 	
-    // Add a word to the vocabulary
-    private static void addWord(String word, MessageType type)
-    {
-        Multiple_Counter counter = new Multiple_Counter();
-
-        if ( vocab.containsKey(word) ){                  // if word exists already in the vocabulary..
-            counter = vocab.get(word);                  // get the counter from the hashtable
-        }
-        counter.incrementCounter(type);                 // increase the counter appropriately
-
-        vocab.put(word, counter);                       // put the word with its counter into the hashtable
-    }
-
-
     // List the regular and spam messages
     private static void listDirs(File dir_location)
+    {
+        File[] dir_listing = subDirs(dir_location);
+        listing_regular = dir_listing[0].listFiles();
+        listing_spam    = dir_listing[1].listFiles();
+    }
+    
+    /// The regular/ and spam/ subdirectories of a directory: its two subdirectories, sorted by name. Every
+    /// tool that reads a corpus directory finds the classes through this.
+    static File[] subDirs(File dir_location)
     {
         // List all files in the directory passed
         File[] dir_listing = dir_location.listFiles();
@@ -136,138 +88,202 @@ public class Bayespam
             Runtime.getRuntime().exit(0);
         }
 
-        listing_regular = dir_listing[0].listFiles();
-        listing_spam    = dir_listing[1].listFiles();
+        /// listFiles() gives no ordering guarantee, so sort to get regular/ before spam/
+        Arrays.sort(dir_listing);
+        return dir_listing;
     }
 
     
-    // Print the current content of the vocabulary
+    /// The WordCounts that training counts in: a Vocabulary, or a bounded one when the memory is limited
+    static WordCounts newCounts()
+    {
+    	return newCounts(1);
+    }
+    
+    /// One of shares WordCounts that count at the same time and are merged afterwards. A bounded one gets its
+    /// share of the -maxvocab words, so all of them together stay within the memory of -maxvocab.
+    static WordCounts newCounts(int shares)
+    {
+    	if (maxVocab > 0)
+    		return new BoundedVocabulary(Math.max(1, maxVocab / shares), minCount);
+    	if (lossyBucket > 0)
+    		return new LossyVocabulary(lossyBucket);
+    	return new Vocabulary();
+    }
+    
+    /// Counts the words given by a feature extractor. A Vocabulary is counted in by the ids of the words, so
+    /// n-grams are never made into text; the bounded WordCounts are given the text of every word.
+    static class WordCounter implements Tokenizer.Sink
+    {
+    	final WordCounts counts;
+    	final MessageType type;
+    	final FeatureExtractor extractor;
+    	final Vocabulary vocab;
+    	long messages = 0;
+    	long words = 0;
+    	
+    	WordCounter(WordCounts counts, MessageType type)
+    	{
+    		this.counts = counts;
+    		this.type = type;
+    		vocab = counts instanceof Vocabulary ? (Vocabulary) counts : null;
+    		extractor = vocab != null ? new FeatureExtractor(features, wordSizeThreshold, vocab.terms(), true)
+    		                          : new FeatureExtractor(features, wordSizeThreshold);
+    	}
+    	
+    	public boolean word(char[] word, int length, int hash)
+    	{
+    		counts.addWord(word, length, hash, type);
+    		++words;
+    		return true;
+    	}
+    	
+    	final FeatureExtractor.IdSink ids = new FeatureExtractor.IdSink()
+    	{
+    		public boolean feature(int id)
+    		{
+    			vocab.count(id, type);
+    			++words;
+    			return true;
+    		}
+    	};
+    	
+    	/// Count all words of a message file
+    	void count(File message)
+    	throws IOException
+    	{
+    		if (vocab != null)
+    			extractor.extract(message, ids);
+    		else
+    			extractor.extract(message, this);
+    		++messages;
+    	}
+    	
+    	/// Count all words of a message that was loaded already
+    	void count(ByteBuffer message)
+    	{
+    		if (vocab != null)
+    			extractor.extract(message, ids);
+    		else
+    			extractor.extract(message, this);
+    		++messages;
+    	}
+    	
+    	/// Add the messages and words counted so far to the metrics, if there are any
+    	void report()
+    	{
+    		if (metrics != null)
+    			metrics.trained(messages, words);
+    	}
+    }
+    
+    // Print the current content of the vocabulary, without the parts of n-grams that are not counted
     private static void printVocab()
     {
-        Multiple_Counter counter = new Multiple_Counter();
-
-        for (Enumeration<String> e = vocab.keys() ; e.hasMoreElements() ;)
-        {   
-            String word;
-            
-            word = e.nextElement();
-            counter  = vocab.get(word);
-            
-            System.out.println( word + " | in regular: " + counter.counter_regular + 
-                                " in spam: "    + counter.counter_spam);
+        for (int id = 0; id < vocab.size(); ++id)
+        {
+            if (!vocab.counted(id))
+                continue;
+            System.out.println( vocab.word(id) + " | in regular: " + vocab.countRegular[id] + 
+                                " in spam: "    + vocab.countSpam[id]);
         }
     }
 
     
 
     // Read the words from messages and add them to your vocabulary. The boolean type determines whether the messages are regular or not  
-    /// The set type determines whether the program is testing or training.
-    /// If the classifier is training then the words are parsed and then put into the vocabulary
-    /// If the classifier is testing then similarly the words are parsed, however they are now used to calculate the probabilities of
-    /// whether a message is a regular or a spam message.
-    private static void readMessages(MessageType type, SetType setType)
+    /// The words are parsed and then put into the vocabulary. (Test messages are not read here but
+    /// scored by the Evaluator.)
+    private static void readMessages(MessageType type)
     throws IOException
     {
         
     	File[] messages = new File[0];
-        Hashtable <Integer, MessageProbs> testTable; 
         
         if (type == MessageType.NORMAL){
             messages = listing_regular;
-            testTable = testRegular;
         } else {
             messages = listing_spam;
-            testTable = testSpam;
         }
         
+        WordCounter counter = new WordCounter(counts, type);
         for (int i = 0; i < messages.length; ++i)
-        {
-            FileInputStream i_s = new FileInputStream( messages[i] );
-            BufferedReader in = new BufferedReader(new InputStreamReader(i_s));
-            String line;
-            String word;
-            /// If we are testing create a new class MessageProbs that keeps track of the probabilities
-            /// of whether a message is regular or spam.
-            if (setType == SetType.TEST)
-            	testTable.put(i, new MessageProbs());
-            while ((line = in.readLine()) != null)                      // read a line
-            {
-                StringTokenizer st = new StringTokenizer(line);         // parse it into words
-                
-                while (st.hasMoreTokens())                  // while there are still words left..
-                {
-                    if(setType == SetType.TRAIN)
-                    	addWord(st.nextToken(), type); // add them to the vocabulary
-                    else
-                    	testTable.get(i).calcMessageProb(st.nextToken()); /// else calculate the probabilities the word adds to the message
-                }
-            }
-
-            in.close();
-        }
+        	counter.count(messages[i]);   // add the (cleaned) words to the vocabulary
+        counter.report();
     }
     
-    
-    public static void main(String[] args)
+    /// Train on the regular and spam messages in dir_location and freeze the result into a scoring model
+    static ScoringModel train(File dir_location)
     throws IOException
     {
-    	// Location of the directory (the path) taken from the cmd line (first arg)
-    	File dir_location = new File( args[0] );
-        
-        // Check if the cmd line arg is a directory
-        if ( !dir_location.isDirectory() )
+        long start = System.nanoTime();
+        if (CorpusSegment.isSegment(dir_location))
         {
-            System.out.println( "- Error: cmd line arg not a directory.\n" );
-            Runtime.getRuntime().exit(0);
+        	/// A compiled corpus is already tokenized, so it must have been compiled with the settings on the
+        	/// command line; its features are counted exactly (without the bounds of -maxvocab and -lossy)
+        	CorpusSegment segment = CorpusSegment.open(dir_location);
+        	if (segment.features != features || segment.wordSizeThreshold != wordSizeThreshold)
+        		throw new IOException("- Error: " + dir_location + " was compiled with other -ngrams, -headers or -minlength flags than given");
+        	counts = segment.count();
+        	nMessagesRegular = segment.nMessagesRegular;
+        	nMessagesSpam = segment.nMessagesSpam;
+        } else if (nThreads > 1)
+        {
+        	/// With more threads the directories are read by a pipeline that lists, loads and counts the
+        	/// messages at the same time, without ever listing a whole directory
+        	File[] dir_listing = subDirs(dir_location);
+        	if (metrics != null)
+        		metrics.phase(ClassifierMetrics.Phase.LIST, start);
+        	start = System.nanoTime();
+        	TrainingPipeline pipeline = new TrainingPipeline(READERS, nThreads);
+        	counts = pipeline.run(dir_listing[0], dir_listing[1]);
+        	nMessagesRegular = pipeline.messagesRegular();
+        	nMessagesSpam = pipeline.messagesSpam();
+        } else
+        {
+        	// Initialize the regular and spam lists
+        	listDirs(dir_location);
+        	counts = newCounts();
+        	nMessagesRegular = listing_regular.length;
+        	nMessagesSpam = listing_spam.length;
+        	if (metrics != null)
+        		metrics.phase(ClassifierMetrics.Phase.LIST, start);
+        	
+        	// Read the e-mail messages
+        	start = System.nanoTime();
+        	readMessages(MessageType.NORMAL);
+        	readMessages(MessageType.SPAM);
         }
-
-        // Initialize the regular and spam lists
-        listDirs(dir_location);
-        
-        // Read the e-mail messages
-        readMessages(MessageType.NORMAL, SetType.TRAIN);
-        readMessages(MessageType.SPAM, SetType.TRAIN);
+        if (metrics != null)
+        	metrics.phase(ClassifierMetrics.Phase.READ, start);
 
         // Print out the hash table
-<<<<<<< HEAD
         //printVocab(); 
-=======
-         
->>>>>>> a78409b202d3b3aa7cfdd475a61cc7103aad3873
 
         // Now all students must continue from here:
         //
         // 1) A priori class probabilities must be computed from the number of regular and spam messages
         
-        nMessagesRegular = listing_regular.length;
-        nMessagesSpam = listing_spam.length;
-        nMessagesTotal = listing_regular.length + listing_spam.length;
+        nMessagesTotal = nMessagesRegular + nMessagesSpam;
         
         aPrioriSpamMessage    = (nMessagesSpam / nMessagesTotal);
         aPrioriRegularMessage = (nMessagesRegular / nMessagesTotal);
         
         System.out.println("a priori spam message:    " + aPrioriSpamMessage);
         System.out.println("a priori regular message: " + aPrioriRegularMessage);
+        logAPrioriSpam = Math.log(aPrioriSpamMessage);
+        logAPrioriRegular = Math.log(aPrioriRegularMessage);
         
         
         // 2) The vocabulary must be clean: punctuation and digits must be removed, case insensitive
         
-        Enumeration<String> enumKey = vocab.keys();
-        while (enumKey.hasMoreElements())
-        {
-        	String key = enumKey.nextElement();
-        	Multiple_Counter counter = vocab.get(key);
-        	
-        	String newKey = key.replaceAll("[^a-zA-Z]", "");
-        	newKey = newKey.toLowerCase();
-        	
-        	vocab.remove(key);
-        	
-        	if (newKey.length() > 4)
-        	{
-        		vocab.put(newKey, counter);
-        	}
-        }
+        /// This is done by the Tokenizer while the messages are read, so only clean words are counted.
+        /// Rare words are removed here (or already while counting, with -maxvocab or -lossy).
+        start = System.nanoTime();
+        vocab = counts.toVocabulary(minCount);
+        counts = null;
+        if (metrics != null)
+        	metrics.phase(ClassifierMetrics.Phase.PRUNE, start);
         
         printVocab();
         
@@ -276,133 +292,252 @@ public class Bayespam
         
         double nWordsRegular 	= 0;
         double nWordsSpam 		= 0;
-        enumKey = vocab.keys();
         
         /// calculate the the total amount of spam and regular words
-        while (enumKey.hasMoreElements())
+        for (int id = 0; id < vocab.size(); ++id)
         {
-        	String key = enumKey.nextElement();
-        	nWordsRegular += vocab.get(key).counter_regular;
-        	nWordsSpam += vocab.get(key).counter_spam;
+        	nWordsRegular += vocab.countRegular[id];
+        	nWordsSpam += vocab.countSpam[id];
         }
-        double nWordsTotal = nWordsRegular + nWordsSpam;
         System.out.println("number of regular words : " + nWordsRegular);
         System.out.println("number of spam words    : " + nWordsSpam);
         
-        enumKey = vocab.keys();
+        start = System.nanoTime();
+        computeProbabilities(vocab, nWordsRegular, nWordsSpam);
+        if (metrics != null)
+        	metrics.phase(ClassifierMetrics.Phase.PROBABILITIES, start);
         
-        double smallVal = 1 / (nWordsRegular + nWordsSpam);
-        while (enumKey.hasMoreElements())
+        /// Precompute one log likelihood ratio per word for the testing phase
+        start = System.nanoTime();
+        ScoringModel model = ScoringModel.freeze(vocab, logAPrioriRegular, logAPrioriSpam, features, wordSizeThreshold);
+        if (metrics != null)
+        	metrics.phase(ClassifierMetrics.Phase.FREEZE, start);
+        return model;
+    }
+    
+    /// Steps 3) to 5): the conditional and a priori probabilities of every word of a vocabulary with the
+    /// given total word counts
+    static void computeProbabilities(Vocabulary vocab, double nWordsRegular, double nWordsSpam)
+    {
+        double nWordsTotal = nWordsRegular + nWordsSpam;
+        smallVal = 1 / (nWordsRegular + nWordsSpam);
+        vocab.allocateProbs();
+        for (int id = 0; id < vocab.size(); ++id)
         {
-			String key = enumKey.nextElement();
-			Multiple_Prob prob = new Multiple_Prob ();
-			
-			double ConditionalSpam = 	(vocab.get(key).counter_spam / nWordsSpam);
-			double ConditionalRegular = (vocab.get(key).counter_regular / nWordsRegular);
-			double aPrioriSpam = 		(vocab.get(key).counter_spam / nWordsTotal);
-			double aPrioriRegular = 	(vocab.get(key).counter_regular / nWordsTotal);
-	        // 5) Zero probabilities must be replaced by a small estimated value			
-			if (vocab.get(key).counter_spam == 0) 
-			{
-				ConditionalSpam = 	smallVal;
-				aPrioriSpam = 		smallVal;
-			}
-			if (vocab.get(key).counter_regular == 0)
-			{
-				ConditionalRegular = smallVal;
-				aPrioriRegular = smallVal;
-			}
-			
-			
-			prob.setProb(MessageType.SPAM, ProbType.CONDITIONAL, ConditionalSpam);
-			prob.setProb(MessageType.NORMAL, ProbType.CONDITIONAL, ConditionalRegular);
-			prob.setProb(MessageType.SPAM, ProbType.PRIORI, aPrioriSpam);
-			prob.setProb(MessageType.NORMAL, ProbType.PRIORI, aPrioriRegular);
-			
-			probs.put(key, prob);
+			/// Only the log of the product is needed for classification
+			vocab.logProbSpam[id] = logProbability(vocab.countSpam[id], nWordsSpam, nWordsTotal);
+			vocab.logProbRegular[id] = logProbability(vocab.countRegular[id], nWordsRegular, nWordsTotal);
 		}
+    }
+    
+    /// log(P(w|class) P(w)) of a word that occurs count times in the messages of a class with nWordsClass
+    /// words, of nWordsTotal words in all messages
+    static double logProbability(double count, double nWordsClass, double nWordsTotal)
+    {
+		double conditional = count / nWordsClass;
+		double aPriori = count / nWordsTotal;
+        // 5) Zero probabilities must be replaced by a small estimated value			
+		if (count == 0)
+		{
+			conditional = 1 / nWordsTotal;
+			aPriori = 1 / nWordsTotal;
+		}
+		return Math.log(conditional * aPriori);
+    }
+    
+    
 
-<<<<<<< HEAD
-        
-        
-        
-
+    public static void main(String[] args)
+    throws IOException
+    {
+        /// Usage: Bayespam <train dir> <test dir> [flags]
+        ///    or: Bayespam -model <model file> <test dir> [flags]
+        /// Both dirs may also be corpus files compiled by CorpusSegment, which are not tokenized again
+        /// Flags: -threads <n>       number of threads used for training and testing
+        ///        -save <model file> write the trained model to a file
+        ///        -headers           use header tokens and skip base64 and very long bodies
+        ///        -ngrams <n>[-<m>]  use n-grams of order n (up to m) instead of words, e.g. -ngrams 1-2
+        ///        -minlength <n>     words must be longer than n characters
+        ///        -mincount <n>      remove words (n-grams) that occur less than n times when training
+        ///        -maxvocab <n>      train in bounded memory, keeping at most n frequent words
+        ///        -lossy <n>         prune rare words while training, with lossy counting in buckets of n words
+        ///        -early             stop reading a test message once its class can no longer change
+        ///        -confidence <x>    like -early, but also stop once the log odds of a message pass +-x
+        ///        -histogram         print a histogram of the scores of the test messages
+        ///        -roc <csv file>    keep the score of every test message and write the ROC/DET curve to a file
+        ///        -frr <x>           also give the threshold with a false reject rate of at most x percent (default 1)
+        ///                           (-roc and -frr read every message in full, so not with -early or -confidence)
+        ///        -metrics           print timings, throughput and latencies, also shown through JMX while running
+        File modelFile = null;
+        File saveFile = null;
+        boolean earlyExit = false;
+        boolean printHistogram = false;
+        File rocFile = null;
+        double targetFrr = -1;
+        double margin = Double.POSITIVE_INFINITY;
+        List<String> dirs = new ArrayList<>();
+        for (int i = 0; i < args.length; ++i)
+        {
+            if (args[i].equals("-threads") && i + 1 < args.length)
+                nThreads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-model") && i + 1 < args.length)
+                modelFile = new File(args[++i]);
+            else if (args[i].equals("-save") && i + 1 < args.length)
+                saveFile = new File(args[++i]);
+            else if (args[i].equals("-headers"))
+                features |= FeatureExtractor.HEADERS;
+            else if (args[i].equals("-ngrams") && i + 1 < args.length)
+            {
+                String[] orders = args[++i].split("-");
+                int minOrder = Integer.parseInt(orders[0]);
+                int maxOrder = Integer.parseInt(orders[orders.length - 1]);
+                features = (features & ~FeatureExtractor.ORDERS) | FeatureExtractor.ngrams(minOrder, maxOrder);
+            }
+            else if (args[i].equals("-minlength") && i + 1 < args.length)
+                wordSizeThreshold = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-mincount") && i + 1 < args.length)
+                minCount = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-maxvocab") && i + 1 < args.length)
+                maxVocab = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-lossy") && i + 1 < args.length)
+                lossyBucket = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-early"))
+                earlyExit = true;
+            else if (args[i].equals("-histogram"))
+                printHistogram = true;
+            else if (args[i].equals("-roc") && i + 1 < args.length)
+                rocFile = new File(args[++i]);
+            else if (args[i].equals("-frr") && i + 1 < args.length)
+                targetFrr = Double.parseDouble(args[++i]) / 100;
+            else if (args[i].equals("-metrics"))
+                metrics = new ClassifierMetrics().register();
+            else if (args[i].equals("-confidence") && i + 1 < args.length)
+            {
+                earlyExit = true;
+                margin = Double.parseDouble(args[++i]);
+            }
+            else
+                dirs.add(args[i]);
+        }
+        if (maxVocab > 0 && lossyBucket > 0)
+        {
+        	System.out.println( "- Error: use either -maxvocab or -lossy, not both.\n" );
+        	Runtime.getRuntime().exit(0);
+        }
+        if (earlyExit && (rocFile != null || targetFrr >= 0))
+        {
+        	/// A score that stopped early only has the right sign, a threshold sweep over it means nothing
+        	System.out.println( "- Error: -roc and -frr need full scores, they cannot be used with -early or -confidence.\n" );
+        	Runtime.getRuntime().exit(0);
+        }
         
-        /*enumKey = probs.keys();
+        /// ------- TRAINING PHASE --------- ///
         
-        while (enumKey.hasMoreElements())
+        if (modelFile != null)
         {
-        	String key = enumKey.nextElement();
-        	Multiple_Prob keyProbs = probs.get(key);
-        	if (keyProbs.conditional_regular == 0.0)
-        		keyProbs.conditional_regular = smallVal;
+        	/// Use a model that was trained before instead of training now
+        	classifier = new SpamClassifier(ModelFile.load(modelFile).model);
+        } else
+        {
+        	// Location of the directory (the path) taken from the cmd line (first arg)
+        	File dir_location = new File( dirs.remove(0) );
         	
-        	if (keyProbs.conditional_spam == 0.0)
-        		keyProbs.conditional_spam = smallVal;
+        	// Check if the cmd line arg is a directory (or a compiled corpus)
+        	if ( !dir_location.isDirectory() && !CorpusSegment.isSegment(dir_location) )
+        	{
+        		System.out.println( "- Error: cmd line arg not a directory.\n" );
+        		Runtime.getRuntime().exit(0);
+        	}
         	
-        	if (keyProbs.priori_regular == 0.0)
-        		keyProbs.priori_regular = smallVal;
+        	classifier = new SpamClassifier(train(dir_location));
         	
-        	if (keyProbs.priori_spam == 0)
-        		keyProbs.priori_spam = smallVal;
+        	if (saveFile != null)
+        		new ModelFile(vocab, classifier.model(), nMessagesRegular, nMessagesSpam, smallVal).save(saveFile);
         }
-        */
-=======
->>>>>>> a78409b202d3b3aa7cfdd475a61cc7103aad3873
+        
         /// ------- TESTING PHASE --------- ///
         
-        dir_location = new File( args[1] );
+        if (earlyExit)
+        	classifier = new SpamClassifier(classifier.model(), margin);
+        if (metrics != null)
+        {
+        	metrics.vocabulary(classifier.model().size());
+        	classifier = classifier.measured(metrics);
+        }
+        
+        File dir_location = new File( dirs.get(0) );
         
-        // Check if the cmd line arg is a directory
-        if ( !dir_location.isDirectory() )
+        // Check if the cmd line arg is a directory (or a compiled corpus)
+        boolean segment = CorpusSegment.isSegment(dir_location);
+        if ( !dir_location.isDirectory() && !segment )
         {
             System.out.println( "- Error: cmd line arg not a directory.\n" );
             Runtime.getRuntime().exit(0);
         }
 
-        // Initialize the regular and spam lists
-        listDirs(dir_location);
-        
-        readMessages(MessageType.NORMAL, SetType.TEST);
-        readMessages(MessageType.SPAM, SetType.TEST);
-        
-        int count = 0;
         // 6) Bayes rule must be applied on new messages, followed by argmax classification
         
-        /// Testing performance of the spamfilter
-        int correctRegular = 0;
-        int correctSpam = 0;
-        Enumeration<Integer> keyItr = testRegular.keys();
-        while (keyItr.hasMoreElements())
+        /// Testing performance of the spamfilter: the messages are scored in parallel on a fork/join pool
+        /// while the test directories are read, only the counts are kept
+        ScoreHistogram histogram = printHistogram ? new ScoreHistogram(-200, 200, 20) : null;
+        /// The scores of all messages are only kept for the threshold sweep (always the full log odds, since
+        /// early stopping is not allowed with it)
+        ThresholdSweep sweep = rocFile != null || targetFrr >= 0 ? new ThresholdSweep() : null;
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, nThreads));
+        ConfusionMatrix matrix;
+        long start = System.nanoTime();
+        try
         {
-        	int key = keyItr.nextElement();
-        	++count;
-        	/// good!
-  
-        	if(testRegular.get(key).regularProb > testRegular.get(key).spamProb)
-        		++correctRegular;	
+        	/// A compiled corpus is scored straight from its mapping, without early stopping
+        	Evaluator evaluator = new Evaluator(classifier, pool, histogram, sweep);
+        	if (segment)
+        		matrix = evaluator.evaluate(CorpusSegment.open(dir_location));
+        	else
+        	{
+        		File[] testDirs = subDirs(dir_location);
+        		matrix = evaluator.evaluate(testDirs[0], testDirs[1]);
+        	}
+        	if (metrics != null)
+        		metrics.phase(ClassifierMetrics.Phase.SCORE, start);
         }
-        
-        keyItr = testSpam.keys();
-        while (keyItr.hasMoreElements())
+        finally
         {
-        	int key = keyItr.nextElement();
-        	++count;
-        	/// good!
-        	if (testSpam.get(key).spamProb > testSpam.get(key).regularProb)
-        		++correctSpam;
+        	pool.shutdown();
         }
-        System.out.println("Percentage correct: " + ((double)(correctRegular+correctSpam)/count)*100 + "\n");
-        System.out.println("Confusion matrix:\n");
-        System.out.println("        |correct|\tfalse");
-        System.out.println("-----------------------------");
-        System.out.println("regular |" + correctRegular + " \t|\t" + (listing_regular.length - correctRegular));
-        System.out.println("-----------------------------");
-        System.out.println("spam    |" + correctSpam + "\t|\t" + (listing_spam.length - correctSpam));
+        
         // 7) Errors must be computed on the test set (FAR = false accept rate (misses), FRR = false reject rate (false alarms))
+        matrix.print(System.out);
+        if (histogram != null)
+        {
+        	System.out.println();
+        	histogram.print(System.out);
+        }
+        if (sweep != null)
+        {
+        	System.out.println();
+        	sweep.print(System.out, targetFrr >= 0 ? targetFrr : 0.01);
+        	if (rocFile != null)
+        	{
+        		PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(rocFile)));
+        		try
+        		{
+        			sweep.writeCurve(out);
+        		}
+        		finally
+        		{
+        			out.close();
+        		}
+        	}
+        }
+        if (metrics != null)
+        {
+        	System.out.println();
+        	metrics.print(System.out);
+        }
         
         // 8) Improve the code and the performance (speed, accuracy)
         //
         // Use the same steps to create a class BigramBayespam which implements a classifier using a vocabulary consisting of bigrams
+        /// BigramBayespam runs this classifier with -ngrams 2 (see FeatureExtractor.ngrams())
         }    
 }
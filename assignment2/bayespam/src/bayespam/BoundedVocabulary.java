@@ -0,0 +1,149 @@
+package bayespam;
+
+/// Counts words for training in a fixed amount of memory, however large the corpus is.
+///
+/// All occurrences are counted in a count-min sketch: DEPTH rows of counters per message type, every word
+/// is counted in one counter per row (chosen by a different hash of the word in every row) and its count is
+/// estimated as the smallest of its counters. Collisions can only make an estimate too high, and with the
+/// conservative update (only the counters that are at the minimum are increased) they rarely do.
+///
+/// The sketch does not know the words themselves, so the words that are worth keeping are held in a side
+/// table of at most maxWords words. A word is admitted to the table once its estimated count reaches the
+/// admission count. When the table is full the admission count is doubled and the words below it are dropped,
+/// so only the frequent words (the heavy hitters) stay. At the end the table is turned into a Vocabulary
+/// with the estimated counts. A bounded vocabulary is not thread safe.
+final class BoundedVocabulary implements WordCounts
+{
+    // Number of rows of the sketch
+    static final int DEPTH = 4;
+
+    // Odd multipliers that give an independent slot in every row
+    private static final int[] MULTIPLIERS = { 0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F };
+
+    private int maxWords;
+    private final int shift;
+    private final int width;
+
+    // The sketch, row after row, for regular and for spam counts
+    private final int[] sketchRegular;
+    private final int[] sketchSpam;
+
+    // The admitted words, only the words themselves are used
+    private Vocabulary words;
+    private int admission;
+
+    // Slots of the word that is being counted
+    private final int[] slots = new int[DEPTH];
+
+    /// A vocabulary of at most maxWords words; the sketch has 4 * maxWords counters per row (rounded up to a
+    /// power of two), so it takes 32 * DEPTH bytes per word. Words are admitted after minCount occurrences.
+    BoundedVocabulary(int maxWords, int minCount)
+    {
+        this.maxWords = maxWords;
+        width = Integer.highestOneBit(Math.max(16, 4 * maxWords) - 1) << 1;
+        shift = 32 - Integer.numberOfTrailingZeros(width);
+        sketchRegular = new int[DEPTH * width];
+        sketchSpam = new int[DEPTH * width];
+        words = new Vocabulary(Math.min(maxWords, 1024));
+        admission = Math.max(1, minCount);
+    }
+
+    /// Count a word given as the first length characters of a buffer
+    public void addWord(char[] word, int length, int hash, Bayespam.MessageType type)
+    {
+        int[] sketch = type == Bayespam.MessageType.NORMAL ? sketchRegular : sketchSpam;
+
+        /// Conservative update: only the counters that hold the current estimate are increased
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; ++row)
+        {
+            slots[row] = row * width + ((hash * MULTIPLIERS[row]) >>> shift);
+            min = Math.min(min, sketch[slots[row]]);
+        }
+        for (int row = 0; row < DEPTH; ++row)
+        {
+            if (sketch[slots[row]] == min)
+                ++sketch[slots[row]];
+        }
+
+        if (words.id(word, length, hash) < 0 && estimate(hash) >= admission)
+        {
+            words.add(word, length, hash);
+            if (words.size() > maxWords)
+                shrink();
+        }
+    }
+
+    /// Add the counts and words of another bounded vocabulary of the same size to this one. The table may
+    /// then hold the words of both, so the vocabularies of parallel counters that each had a share of the
+    /// words add up to the whole.
+    public void mergeCounts(WordCounts counts)
+    {
+        BoundedVocabulary other = (BoundedVocabulary) counts;
+        if (other.width != width)
+            throw new IllegalArgumentException("sketches differ in size");
+        for (int i = 0; i < sketchRegular.length; ++i)
+        {
+            sketchRegular[i] += other.sketchRegular[i];
+            sketchSpam[i] += other.sketchSpam[i];
+        }
+        admission = Math.max(admission, other.admission);
+        maxWords += other.maxWords;
+        for (int id = 0; id < other.words.size(); ++id)
+            words.add(other.words.word(id));
+        if (words.size() > maxWords)
+            shrink();
+    }
+
+    /// The admitted words with their estimated counts, words estimated below minCount are left out
+    public Vocabulary toVocabulary(int minCount)
+    {
+        Vocabulary vocab = new Vocabulary(words.size());
+        for (int id = 0; id < words.size(); ++id)
+        {
+            int hash = words.word(id).hashCode();
+            int regular = estimate(sketchRegular, hash);
+            int spam = estimate(sketchSpam, hash);
+            if (regular + spam >= minCount)
+                vocab.addCounts(words.word(id), regular, spam);
+        }
+        return vocab;
+    }
+
+    // Raise the admission count until at most three quarters of the table is used, so the table
+    // is not shrunk again for every new word
+    private void shrink()
+    {
+        while (words.size() > maxWords * 3 / 4)
+        {
+            admission *= 2;
+            Vocabulary kept = new Vocabulary(words.size());
+            for (int id = 0; id < words.size(); ++id)
+            {
+                if (estimate(words.word(id).hashCode()) >= admission)
+                    kept.add(words.word(id));
+            }
+            words = kept;
+        }
+    }
+
+    // Estimated number of occurrences of a word in regular and spam messages together
+    private int estimate(int hash)
+    {
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; ++row)
+        {
+            int slot = row * width + ((hash * MULTIPLIERS[row]) >>> shift);
+            min = Math.min(min, sketchRegular[slot] + sketchSpam[slot]);
+        }
+        return min;
+    }
+
+    private int estimate(int[] sketch, int hash)
+    {
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; ++row)
+            min = Math.min(min, sketch[row * width + ((hash * MULTIPLIERS[row]) >>> shift)]);
+        return min;
+    }
+}
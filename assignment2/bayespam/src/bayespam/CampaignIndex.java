@@ -0,0 +1,335 @@
+package bayespam;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/// Groups the recently classified messages into campaigns of near duplicates, so a message that is a copy of
+/// a recent one with a few words changed gets the verdict of its campaign without being scored, and the size
+/// of every campaign is known. Exact copies are better served by a ResultCache; this index also catches the
+/// copies that vary.
+///
+/// The features of a message (the same words or n-grams the model scores) are turned into a MinHash signature
+/// of SIGNATURE values in one pass, with one permutation hashing: every feature is hashed once, the hash picks
+/// a bin and the lowest value per bin is kept; empty bins take the value of the next filled bin (rotation).
+/// The fraction of equal values of two signatures estimates the Jaccard similarity of their feature sets.
+///
+/// The signature is cut into BANDS bands of ROWS values and every band is a key (locality sensitive hashing):
+/// messages that share a band key are candidates, and a candidate is in the campaign when the signatures are at
+/// least SIMILARITY alike. With 16 bands of 4 rows a message that is 70% similar to a campaign finds it with a
+/// chance of 99%, one that is 30% similar with a chance of 12% (and is then rejected by the check).
+///
+/// The band keys are spread over STRIPES maps, each behind its own lock, so messages are looked up and added
+/// in parallel. Each map holds at most its share of maxCampaigns * BANDS keys and drops the least recently
+/// used one beyond that; campaigns that no message joined for the expiry time are dropped when they are met
+/// and by expire(). A message without features is always scored. An index is thread safe.
+public final class CampaignIndex
+{
+    /// Values in a signature (2^BIN_BITS), bands and values per band
+    static final int BIN_BITS = 6;
+    static final int SIGNATURE = 1 << BIN_BITS;
+    static final int BANDS = 16;
+    static final int ROWS = SIGNATURE / BANDS;
+
+    /// Estimated Jaccard similarity from which a message joins a campaign
+    static final double SIMILARITY = 0.7;
+
+    /// Number of band maps, each with its own lock
+    static final int STRIPES = 16;
+
+    // Value of a bin without features
+    private static final int EMPTY = -1;
+
+    private final SpamClassifier classifier;
+    private final long expiryNanos;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private final AtomicLong campaignIds = new AtomicLong();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder joined = new LongAdder();
+
+    // Feature extractor and signature of every thread that uses this index
+    private final ThreadLocal<Signer> signers = new ThreadLocal<Signer>()
+    {
+        protected Signer initialValue()
+        {
+            return new Signer(classifier.model());
+        }
+    };
+
+    /// An index of at most about maxCampaigns campaigns that scores new messages with a classifier and drops
+    /// the campaigns that no message joined for expirySeconds
+    public CampaignIndex(SpamClassifier classifier, int maxCampaigns, long expirySeconds)
+    {
+        if (maxCampaigns < 1 || expirySeconds < 1)
+            throw new IllegalArgumentException("campaigns and expiry must be at least 1: " + maxCampaigns + ", " + expirySeconds);
+        this.classifier = classifier;
+        expiryNanos = expirySeconds * 1000000000L;
+        for (int s = 0; s < STRIPES; ++s)
+            stripes[s] = new Stripe((int) Math.min(Integer.MAX_VALUE, ((long) maxCampaigns * BANDS + STRIPES - 1) / STRIPES));
+    }
+
+    /// The spam score of a message given as the bytes between position and limit of a buffer: the score of
+    /// its campaign, or when it is not in a recent campaign its own score (and it starts a new campaign)
+    public double classify(ByteBuffer message)
+    {
+        messages.increment();
+        long now = System.nanoTime();
+        int[] signature = signers.get().sign(message);
+        if (signature == null)
+            return classifier.classify(message);
+
+        long[] keys = new long[BANDS];
+        for (int band = 0; band < BANDS; ++band)
+        {
+            keys[band] = bandKey(signature, band);
+            Campaign campaign = stripe(keys[band]).find(keys[band], now);
+            if (campaign != null && similarity(campaign.signature, signature) >= SIMILARITY)
+            {
+                campaign.join(now);
+                joined.increment();
+                return campaign.score;
+            }
+        }
+
+        Campaign campaign = new Campaign(campaignIds.incrementAndGet(), signature, classifier.classify(message), now);
+        for (int band = 0; band < BANDS; ++band)
+            stripe(keys[band]).add(keys[band], campaign, now);
+        return campaign.score;
+    }
+
+    /// Drop the campaigns that expired
+    public void expire()
+    {
+        long now = System.nanoTime();
+        for (Stripe stripe : stripes)
+            stripe.expire(now);
+    }
+
+    /// The campaigns that have not expired, the largest first
+    public List<Campaign> campaigns()
+    {
+        expire();
+        Map<Campaign, Boolean> found = new IdentityHashMap<>();
+        for (Stripe stripe : stripes)
+            stripe.collect(found);
+        List<Campaign> campaigns = new ArrayList<>(found.keySet());
+        Collections.sort(campaigns, new Comparator<Campaign>()
+        {
+            public int compare(Campaign a, Campaign b)
+            {
+                return Long.compare(b.size(), a.size());
+            }
+        });
+        return campaigns;
+    }
+
+    /// Print the number of messages that joined a campaign and the largest campaigns
+    public void print(PrintStream out, int top)
+    {
+        List<Campaign> campaigns = campaigns();
+        long total = messages.sum();
+        out.println(String.format("%d messages, %d (%.1f%%) joined a recent campaign, %d campaigns", total, joined.sum(),
+        		total == 0 ? 0 : 100.0 * joined.sum() / total, campaigns.size()));
+        for (int i = 0; i < Math.min(top, campaigns.size()); ++i)
+        {
+            Campaign campaign = campaigns.get(i);
+            out.println(String.format("  campaign %6d: %8d messages, %-7s (score %.2f), last seen %.0f s ago", campaign.id,
+            		campaign.size(), SpamClassifier.isSpam(campaign.score) ? "spam" : "regular", campaign.score,
+            		(System.nanoTime() - campaign.lastSeen) / 1e9));
+        }
+    }
+
+    /// A group of near duplicate messages, with the signature and the score of the message that started it
+    public static final class Campaign
+    {
+        final long id;
+        final int[] signature;
+        final double score;
+        private final LongAdder size = new LongAdder();
+        private volatile long lastSeen;
+
+        Campaign(long id, int[] signature, double score, long now)
+        {
+            this.id = id;
+            this.signature = signature;
+            this.score = score;
+            size.increment();
+            lastSeen = now;
+        }
+
+        /// Number of the campaign, in the order the campaigns were started
+        public long id()
+        {
+            return id;
+        }
+
+        /// Number of messages in the campaign
+        public long size()
+        {
+            return size.sum();
+        }
+
+        /// The score of the campaign
+        public double score()
+        {
+            return score;
+        }
+
+        void join(long now)
+        {
+            size.increment();
+            lastSeen = now;
+        }
+    }
+
+    private Stripe stripe(long key)
+    {
+        return stripes[(int) (key >>> 60) & (STRIPES - 1)];
+    }
+
+    // Fraction of equal values in two signatures
+    private static double similarity(int[] a, int[] b)
+    {
+        int equal = 0;
+        for (int i = 0; i < SIGNATURE; ++i)
+        {
+            if (a[i] == b[i])
+                ++equal;
+        }
+        return (double) equal / SIGNATURE;
+    }
+
+    // The key of a band of a signature, different bands never share keys for the same values
+    private static long bandKey(int[] signature, int band)
+    {
+        long key = band;
+        for (int row = band * ROWS; row < (band + 1) * ROWS; ++row)
+            key = key * 0x100000001b3L + signature[row];
+        return mix(key);
+    }
+
+    // The finalizer of MurmurHash3, spreads every bit of the input over the whole result
+    private static long mix(long h)
+    {
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    // The band keys of one part of the key space, in LRU order
+    private final class Stripe extends LinkedHashMap<Long, Campaign>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Stripe(int capacity)
+        {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        // The campaign of a band key, or null when it has none or it expired
+        synchronized Campaign find(long key, long now)
+        {
+            Campaign campaign = get(key);
+            if (campaign == null || !expired(campaign, now))
+                return campaign;
+            remove(key);
+            return null;
+        }
+
+        synchronized void add(long key, Campaign campaign, long now)
+        {
+            put(key, campaign);
+            /// The least recently used keys come first, drop them while their campaigns expired
+            Iterator<Campaign> oldest = values().iterator();
+            while (oldest.hasNext() && expired(oldest.next(), now))
+                oldest.remove();
+        }
+
+        synchronized void expire(long now)
+        {
+            Iterator<Campaign> campaigns = values().iterator();
+            while (campaigns.hasNext())
+            {
+                if (expired(campaigns.next(), now))
+                    campaigns.remove();
+            }
+        }
+
+        synchronized void collect(Map<Campaign, Boolean> found)
+        {
+            for (Campaign campaign : values())
+                found.put(campaign, Boolean.TRUE);
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<Long, Campaign> eldest)
+        {
+            return size() > capacity;
+        }
+
+        private boolean expired(Campaign campaign, long now)
+        {
+            return now - campaign.lastSeen > expiryNanos;
+        }
+    }
+
+    // Computes the signatures of messages with its own feature extractor
+    private static final class Signer implements Tokenizer.Sink
+    {
+        final FeatureExtractor extractor;
+        final int[] bins = new int[SIGNATURE];
+        int features;
+
+        Signer(ScoringModel model)
+        {
+            extractor = model.newExtractor();
+        }
+
+        // The signature of a message, or null when it has no features
+        int[] sign(ByteBuffer message)
+        {
+            Arrays.fill(bins, EMPTY);
+            features = 0;
+            extractor.extract(message, this);
+            if (features == 0)
+                return null;
+
+            /// Fill the empty bins from the next filled bin, mixed with the distance so that they differ
+            int[] signature = new int[SIGNATURE];
+            for (int bin = 0; bin < SIGNATURE; ++bin)
+            {
+                int distance = 0;
+                while (bins[(bin + distance) % SIGNATURE] == EMPTY)
+                    ++distance;
+                int value = bins[(bin + distance) % SIGNATURE];
+                signature[bin] = distance == 0 ? value : (int) mix(value + distance * 0x9e3779b97f4a7c15L) & 0x7fffffff;
+            }
+            return signature;
+        }
+
+        public boolean word(char[] word, int length, int hash)
+        {
+            /// The hash of the feature picks the bin (the top BIN_BITS bits) and is the value in it (the low bits)
+            long h = mix(hash * 0x9e3779b97f4a7c15L);
+            int bin = (int) (h >>> (64 - BIN_BITS));
+            int value = (int) h & 0x7fffffff;
+            if (bins[bin] == EMPTY || value < bins[bin])
+                bins[bin] = value;
+            ++features;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package bayespam;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/// Counters and timings of training and classification, cheap enough to be kept on the hot paths: every
+/// count is a LongAdder (threads add to their own cell, so they do not contend) and a classification costs
+/// two calls of System.nanoTime(). Nothing is measured when no metrics are given (the default).
+///
+/// The time of every Phase is summed. The latency of single classifications is counted in a histogram with
+/// one bin per power of two nanoseconds, so percentiles are rounded up to a power of two (at most a factor
+/// 2 too high). The metrics can be read directly, through the ClassifierMetricsMXBean interface, through JMX
+/// after register() or printed with print(). Metrics are thread safe.
+public final class ClassifierMetrics implements ClassifierMetricsMXBean
+{
+    /// Name of the metrics in the platform MBean server
+    public static final String OBJECT_NAME = "bayespam:type=ClassifierMetrics";
+
+    /// The phases of training and testing that are timed
+    public enum Phase
+    {
+        LIST,           // listing the training directories (with threads the listing stage, which overlaps READ)
+        READ,           // tokenizing the training messages and counting the words (one pass), including MERGE
+        MERGE,          // merging the counts of the training threads
+        PRUNE,          // removing the rare words from the counts
+        PROBABILITIES,  // computing the probabilities
+        FREEZE,         // building the scoring model
+        SCORE           // classifying the test messages
+    }
+
+    private final LongAdder messagesTrained = new LongAdder();
+    private final LongAdder wordsTrained = new LongAdder();
+    private final LongAdder messagesScored = new LongAdder();
+    private final LongAdder wordsScored = new LongAdder();
+    private volatile int vocabularySize;
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+
+    // Per phase the summed time in nanoseconds
+    private final LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+
+    // Latencies: bin b counts the latencies from 2^(b - 1) up to 2^b nanoseconds (bin 0 counts 0)
+    private final AtomicLongArray latencyBins = new AtomicLongArray(64);
+    private final LongAdder latencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    public ClassifierMetrics()
+    {
+        for (int p = 0; p < phaseNanos.length; ++p)
+            phaseNanos[p] = new LongAdder();
+    }
+
+    /// Register the metrics in the platform MBean server, so they can be watched through JMX
+    public ClassifierMetrics register()
+    {
+        try
+        {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        }
+        catch (JMException e)
+        {
+            throw new IllegalStateException("cannot register " + OBJECT_NAME, e);
+        }
+        return this;
+    }
+
+    /// Add the time since start (from System.nanoTime()) to a phase
+    public void phase(Phase phase, long start)
+    {
+        phaseNanos[phase.ordinal()].add(System.nanoTime() - start);
+    }
+
+    /// Count training messages and the words counted in them
+    public void trained(long messages, long words)
+    {
+        messagesTrained.add(messages);
+        wordsTrained.add(words);
+    }
+
+    /// Set the number of words in the model
+    public void vocabulary(int size)
+    {
+        vocabularySize = size;
+    }
+
+    /// Count a classified message, the words scored in it and the time it took
+    public void scored(int words, long nanos)
+    {
+        messagesScored.increment();
+        wordsScored.add(words);
+        latencyBins.incrementAndGet(Math.min(63, 64 - Long.numberOfLeadingZeros(Math.max(0, nanos))));
+        latencyNanos.add(nanos);
+        long max;
+        while (nanos > (max = maxLatencyNanos.get()) && !maxLatencyNanos.compareAndSet(max, nanos))
+            ;
+    }
+
+    /// Count a lookup in a ResultCache
+    public void cached(boolean hit)
+    {
+        (hit ? cacheHits : cacheMisses).increment();
+    }
+
+    public long getMessagesTrained()
+    {
+        return messagesTrained.sum();
+    }
+
+    public long getWordsTrained()
+    {
+        return wordsTrained.sum();
+    }
+
+    public double getTrainingWordsPerSecond()
+    {
+        return perSecond(wordsTrained.sum(), phaseNanos[Phase.READ.ordinal()].sum());
+    }
+
+    public int getVocabularySize()
+    {
+        return vocabularySize;
+    }
+
+    public long getMessagesScored()
+    {
+        return messagesScored.sum();
+    }
+
+    public long getWordsScored()
+    {
+        return wordsScored.sum();
+    }
+
+    /// Messages per second of the SCORE phase; when that was not timed (e.g. single messages that are
+    /// classified on request), per second of classification latency
+    public double getMessagesPerSecond()
+    {
+        long nanos = phaseNanos[Phase.SCORE.ordinal()].sum();
+        return perSecond(messagesScored.sum(), nanos > 0 ? nanos : latencyNanos.sum());
+    }
+
+    public long getCacheHits()
+    {
+        return cacheHits.sum();
+    }
+
+    public long getCacheMisses()
+    {
+        return cacheMisses.sum();
+    }
+
+    public double getCacheHitRate()
+    {
+        long lookups = cacheHits.sum() + cacheMisses.sum();
+        return lookups == 0 ? 0 : (double) cacheHits.sum() / lookups;
+    }
+
+    public double getLatencyMeanMicros()
+    {
+        long n = messagesScored.sum();
+        return n == 0 ? 0 : latencyNanos.sum() / 1e3 / n;
+    }
+
+    public double getLatencyP50Micros()
+    {
+        return latencyPercentile(0.50) / 1e3;
+    }
+
+    public double getLatencyP99Micros()
+    {
+        return latencyPercentile(0.99) / 1e3;
+    }
+
+    public double getLatencyMaxMicros()
+    {
+        return maxLatencyNanos.get() / 1e3;
+    }
+
+    public Map<String, Double> getPhaseMillis()
+    {
+        Map<String, Double> millis = new LinkedHashMap<>();
+        for (Phase phase : Phase.values())
+            millis.put(phase.name().toLowerCase(), phaseNanos[phase.ordinal()].sum() / 1e6);
+        return millis;
+    }
+
+    public void reset()
+    {
+        messagesTrained.reset();
+        wordsTrained.reset();
+        messagesScored.reset();
+        wordsScored.reset();
+        cacheHits.reset();
+        cacheMisses.reset();
+        for (LongAdder nanos : phaseNanos)
+            nanos.reset();
+        for (int bin = 0; bin < latencyBins.length(); ++bin)
+            latencyBins.set(bin, 0);
+        latencyNanos.reset();
+        maxLatencyNanos.set(0);
+    }
+
+    /// Print all metrics
+    public void print(PrintStream out)
+    {
+        out.println("Metrics:");
+        for (Map.Entry<String, Double> phase : getPhaseMillis().entrySet())
+            out.println(String.format("  %-22s %10.1f ms", phase.getKey(), phase.getValue()));
+        out.println(String.format("  %-22s %10d", "messages trained", getMessagesTrained()));
+        out.println(String.format("  %-22s %10d  (%.0f/s)", "words trained", getWordsTrained(), getTrainingWordsPerSecond()));
+        out.println(String.format("  %-22s %10d", "vocabulary size", getVocabularySize()));
+        out.println(String.format("  %-22s %10d  (%.0f/s)", "messages scored", getMessagesScored(), getMessagesPerSecond()));
+        out.println(String.format("  %-22s %10d", "words scored", getWordsScored()));
+        if (getCacheHits() + getCacheMisses() > 0)
+            out.println(String.format("  %-22s %10d  (%.1f%% of %d lookups)", "cache hits", getCacheHits(),
+            		100 * getCacheHitRate(), getCacheHits() + getCacheMisses()));
+        out.println(String.format("  %-22s mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us", "latency",
+        		getLatencyMeanMicros(), getLatencyP50Micros(), getLatencyP99Micros(), getLatencyMaxMicros()));
+    }
+
+    // The upper end of the bin of the latency below which the given fraction of the latencies are
+    private double latencyPercentile(double fraction)
+    {
+        long n = 0;
+        for (int bin = 0; bin < latencyBins.length(); ++bin)
+            n += latencyBins.get(bin);
+        if (n == 0)
+            return 0;
+        long rank = (long) Math.ceil(fraction * n);
+        long seen = 0;
+        for (int bin = 0; bin < latencyBins.length(); ++bin)
+        {
+            seen += latencyBins.get(bin);
+            if (seen >= rank)
+                return Math.min(bin == 0 ? 0 : Math.pow(2, bin), maxLatencyNanos.get());
+        }
+        return maxLatencyNanos.get();
+    }
+
+    private static double perSecond(long count, long nanos)
+    {
+        return nanos == 0 ? 0 : count * 1e9 / nanos;
+    }
+}
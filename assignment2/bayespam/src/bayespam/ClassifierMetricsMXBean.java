@@ -0,0 +1,39 @@
+package bayespam;
+
+import java.util.Map;
+
+/// The metrics of training and classification (see ClassifierMetrics), as they are shown through JMX,
+/// e.g. in JConsole or VisualVM under bayespam:type=ClassifierMetrics. Times are in milliseconds and
+/// latencies in microseconds.
+public interface ClassifierMetricsMXBean
+{
+    /// Training: messages and words (features) counted, and the words counted per second of reading
+    long getMessagesTrained();
+    long getWordsTrained();
+    double getTrainingWordsPerSecond();
+
+    /// Number of words (features) in the model
+    int getVocabularySize();
+
+    /// Classification: messages and words scored, and the messages scored per second of the scoring phase
+    long getMessagesScored();
+    long getWordsScored();
+    double getMessagesPerSecond();
+
+    /// Lookups in a ResultCache that were answered from the cache and that had to classify the message
+    long getCacheHits();
+    long getCacheMisses();
+    double getCacheHitRate();
+
+    /// Latency of classifying a single message
+    double getLatencyMeanMicros();
+    double getLatencyP50Micros();
+    double getLatencyP99Micros();
+    double getLatencyMaxMicros();
+
+    /// Total time spent in every phase
+    Map<String, Double> getPhaseMillis();
+
+    /// Set all metrics to zero
+    void reset();
+}
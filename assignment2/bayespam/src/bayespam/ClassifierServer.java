@@ -0,0 +1,380 @@
+package bayespam;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/// Serves a trained model over HTTP, so other programs can classify messages without glue code:
+///
+///     POST /classify   the body is a message, the answer is "spam <score>" or "regular <score>"
+///     GET  /metrics    the metrics of the server (see ClassifierMetrics), also shown through JMX
+///     GET  /campaigns  the largest recent campaigns of near duplicate messages (with a CampaignIndex)
+///
+/// Every request is handled on its own virtual thread when the JVM has them (Java 21 and later), so tens
+/// of thousands of connections can wait for their request body at the same time; on older JVMs a fixed pool
+/// of FALLBACK_THREADS threads is used instead. Reading a request blocks, classifying it does not, so the
+/// classification itself runs on a pool of one platform thread per core: the cores are never oversubscribed
+/// (which keeps the p99 latency low under load) and every core keeps its own feature extractor (see
+/// SpamClassifier), where a new virtual thread for every request would need a new extractor every time.
+/// With a cache, copies of a message that was classified recently are answered from a ResultCache; instead
+/// of that the messages can be grouped by a CampaignIndex, so near duplicates get the verdict of their campaign.
+///
+/// The server only listens on the loopback address unless another address is given (-bind), since anyone who
+/// can reach it can have messages classified and read the metrics.
+///
+/// See LoadGenerator in the bayespamBench project for a client that puts the server under load.
+public final class ClassifierServer
+{
+    /// Default port of the server
+    public static final int PORT = 8025;
+
+    /// Number of request threads when the JVM has no virtual threads
+    static final int FALLBACK_THREADS = 256;
+
+    /// Connections that may wait to be accepted
+    static final int BACKLOG = 4096;
+
+    /// Campaigns shown by GET /campaigns
+    static final int TOP_CAMPAIGNS = 20;
+
+    /// Largest message that is classified
+    static final int MAX_MESSAGE_BYTES = 16 << 20;
+
+    /// Largest buffer a request body is first read into, whatever its Content-Length
+    static final int FIRST_BUFFER_BYTES = 64 << 10;
+
+    private final SpamClassifier classifier;
+    private final ResultCache cache;
+    private volatile CampaignIndex campaigns;
+    private final ClassifierMetrics metrics;
+    private final ExecutorService requestThreads;
+    private final boolean virtualThreads;
+    private final ExecutorService classifyThreads;
+    private final HttpServer server;
+
+    /// A server for the given classifier on a port of the loopback address (0 for any free port), started
+    /// with start()
+    public ClassifierServer(SpamClassifier classifier, int port, int nThreads)
+    throws IOException
+    {
+        this(classifier, port, nThreads, 0);
+    }
+
+    /// A server on the loopback address that keeps the scores of the last cacheSize distinct messages (none when 0)
+    public ClassifierServer(SpamClassifier classifier, int port, int nThreads, int cacheSize)
+    throws IOException
+    {
+        this(classifier, InetAddress.getLoopbackAddress(), port, nThreads, cacheSize);
+    }
+
+    /// A server that listens on the given address of the local machine, the wildcard address (0.0.0.0) for
+    /// all interfaces
+    public ClassifierServer(SpamClassifier classifier, InetAddress address, int port, int nThreads, int cacheSize)
+    throws IOException
+    {
+        metrics = new ClassifierMetrics();
+        metrics.vocabulary(classifier.model().size());
+        this.classifier = classifier.measured(metrics);
+        cache = cacheSize > 0 ? new ResultCache(this.classifier, cacheSize, metrics) : null;
+        ExecutorService virtual = newVirtualThreadExecutor();
+        virtualThreads = virtual != null;
+        requestThreads = virtualThreads ? virtual : Executors.newFixedThreadPool(FALLBACK_THREADS);
+        classifyThreads = Executors.newFixedThreadPool(Math.max(1, nThreads));
+        server = HttpServer.create(new InetSocketAddress(address, port), BACKLOG);
+        server.setExecutor(requestThreads);
+        server.createContext("/classify", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange)
+            throws IOException
+            {
+                classify(exchange);
+            }
+        });
+        server.createContext("/campaigns", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange)
+            throws IOException
+            {
+                if (campaigns == null)
+                {
+                    respond(exchange, 404, "- Error: the server does not group campaigns (start it with -campaigns <n>)\n");
+                    return;
+                }
+                ByteArrayOutputStream text = new ByteArrayOutputStream();
+                campaigns.print(new PrintStream(text, true, "UTF-8"), TOP_CAMPAIGNS);
+                respond(exchange, 200, text.toString("UTF-8"));
+            }
+        });
+        server.createContext("/metrics", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange)
+            throws IOException
+            {
+                ByteArrayOutputStream text = new ByteArrayOutputStream();
+                metrics.print(new PrintStream(text, true, "UTF-8"));
+                respond(exchange, 200, text.toString("UTF-8"));
+            }
+        });
+    }
+
+    /// Group the messages into campaigns of near duplicates, at most maxCampaigns that are dropped when no
+    /// message joined them for expirySeconds. Near duplicates get the verdict of their campaign. Call before
+    /// start(), on a server without a cache.
+    public ClassifierServer groupCampaigns(int maxCampaigns, long expirySeconds)
+    {
+        if (cache != null)
+            throw new IllegalStateException("a server groups campaigns or has a cache, not both");
+        campaigns = new CampaignIndex(classifier, maxCampaigns, expirySeconds);
+        return this;
+    }
+
+    /// Start serving and register the metrics with JMX
+    public ClassifierServer start()
+    {
+        metrics.register();
+        server.start();
+        return this;
+    }
+
+    /// Stop serving, waiting at most delay seconds for the requests that are being handled
+    public void stop(int delay)
+    {
+        server.stop(delay);
+        requestThreads.shutdown();
+        classifyThreads.shutdown();
+    }
+
+    /// The port the server listens on
+    public int port()
+    {
+        return server.getAddress().getPort();
+    }
+
+    /// The address the server listens on
+    public InetAddress address()
+    {
+        return server.getAddress().getAddress();
+    }
+
+    /// Whether every request gets its own virtual thread
+    public boolean usesVirtualThreads()
+    {
+        return virtualThreads;
+    }
+
+    /// The metrics of the server
+    public ClassifierMetrics metrics()
+    {
+        return metrics;
+    }
+
+    public static void main(String[] args)
+    throws IOException
+    {
+        /// Usage: ClassifierServer -model <model file> [flags]
+        /// Flags: -port <n>          port to listen on (default 8025)
+        ///        -bind <address>    address to listen on (default: loopback only; 0.0.0.0 for all interfaces)
+        ///        -threads <n>       number of threads that classify (default: one per core)
+        ///        -early             stop reading a message once its class can no longer change
+        ///        -confidence <x>    like -early, but also stop once the log odds of a message pass +-x
+        ///        -cache <n>         answer copies of the last n distinct messages from a cache
+        ///        -campaigns <n>     give near duplicates of the last n campaigns the verdict of their campaign
+        ///                           (instead of -cache, copies are near duplicates too)
+        ///        -expire <s>        drop campaigns that no message joined for s seconds (default 3600)
+        File modelFile = null;
+        int port = PORT;
+        InetAddress address = InetAddress.getLoopbackAddress();
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        boolean earlyExit = false;
+        double margin = Double.POSITIVE_INFINITY;
+        int cacheSize = 0;
+        int maxCampaigns = 0;
+        long expirySeconds = 3600;
+        for (int i = 0; i < args.length; ++i)
+        {
+            if (args[i].equals("-model") && i + 1 < args.length)
+                modelFile = new File(args[++i]);
+            else if (args[i].equals("-port") && i + 1 < args.length)
+                port = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-bind") && i + 1 < args.length)
+                address = InetAddress.getByName(args[++i]);
+            else if (args[i].equals("-threads") && i + 1 < args.length)
+                nThreads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-early"))
+                earlyExit = true;
+            else if (args[i].equals("-confidence") && i + 1 < args.length)
+            {
+                earlyExit = true;
+                margin = Double.parseDouble(args[++i]);
+            }
+            else if (args[i].equals("-cache") && i + 1 < args.length)
+                cacheSize = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-campaigns") && i + 1 < args.length)
+                maxCampaigns = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-expire") && i + 1 < args.length)
+                expirySeconds = Long.parseLong(args[++i]);
+            else
+            {
+                System.out.println("- Error: unknown argument " + args[i] + "\n");
+                Runtime.getRuntime().exit(0);
+            }
+        }
+        if (cacheSize > 0 && maxCampaigns > 0)
+        {
+            System.out.println("- Error: use either -cache or -campaigns.\n");
+            Runtime.getRuntime().exit(0);
+        }
+        if (modelFile == null)
+        {
+            System.out.println("- Error: no model file given (train one with Bayespam -save <model file>).\n");
+            Runtime.getRuntime().exit(0);
+        }
+
+        ScoringModel model = ModelFile.load(modelFile).model;
+        SpamClassifier classifier = earlyExit ? new SpamClassifier(model, margin) : new SpamClassifier(model);
+        ClassifierServer server = new ClassifierServer(classifier, address, port, nThreads, cacheSize);
+        if (maxCampaigns > 0)
+            server.groupCampaigns(maxCampaigns, expirySeconds);
+        server.start();
+        System.out.println("Serving " + modelFile + " (" + model.size() + " words) on " + server.address().getHostAddress()
+                            + " port " + server.port()
+                            + " with " + (server.usesVirtualThreads() ? "virtual threads" : FALLBACK_THREADS + " request threads"));
+    }
+
+    /// An executor that runs every task on a new virtual thread, or null when the JVM has no virtual threads.
+    /// Found by reflection, so the code still compiles and runs on Java 8.
+    static ExecutorService newVirtualThreadExecutor()
+    {
+        try
+        {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        }
+        catch (NoSuchMethodException e)
+        {
+            return null;
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException("cannot create virtual threads", e);
+        }
+    }
+
+    // Read the message of a request and let a classifying thread score it
+    private void classify(HttpExchange exchange)
+    throws IOException
+    {
+        try
+        {
+            if (!exchange.getRequestMethod().equals("POST"))
+            {
+                respond(exchange, 405, "- Error: use POST /classify with the message as the body\n");
+                return;
+            }
+            int length = contentLength(exchange);
+            if (length == -2)
+            {
+                respond(exchange, 400, "- Error: malformed Content-Length\n");
+                return;
+            }
+            /// A body that is announced as too large is refused before any of it is read
+            final ByteBuffer message = length > MAX_MESSAGE_BYTES ? null : readBody(exchange, length);
+            if (message == null)
+            {
+                respond(exchange, 413, "- Error: message larger than " + MAX_MESSAGE_BYTES + " bytes\n");
+                return;
+            }
+            double score = classifyThreads.submit(new Callable<Double>()
+            {
+                public Double call()
+                {
+                    if (cache != null)
+                        return cache.classify(message);
+                    return campaigns != null ? campaigns.classify(message) : classifier.classify(message);
+                }
+            }).get();
+            respond(exchange, 200, String.format(Locale.ROOT, "%s %.6f\n", SpamClassifier.isSpam(score) ? "spam" : "regular", score));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "- Error: server is stopping\n");
+        }
+        catch (ExecutionException e)
+        {
+            respond(exchange, 500, "- Error: " + e.getCause() + "\n");
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    // The Content-Length of a request: -1 when it has none, -2 when it is not a number or negative. A length
+    // beyond the int range is counted as MAX_MESSAGE_BYTES + 1, which is too large anyway.
+    private static int contentLength(HttpExchange exchange)
+    {
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (length == null)
+            return -1;
+        try
+        {
+            long value = Long.parseLong(length.trim());
+            return value < 0 ? -2 : (int) Math.min(value, MAX_MESSAGE_BYTES + 1);
+        }
+        catch (NumberFormatException e)
+        {
+            return -2;
+        }
+    }
+
+    // The body of a request with the given Content-Length (-1 when unknown), or null when it is larger than
+    // MAX_MESSAGE_BYTES. The buffer starts small and only grows as the bytes arrive, so a client that claims
+    // a large length without sending it does not make the server allocate that much.
+    private static ByteBuffer readBody(HttpExchange exchange, int length)
+    throws IOException
+    {
+        byte[] bytes = new byte[length < 0 ? 4096 : Math.max(1, Math.min(length, FIRST_BUFFER_BYTES))];
+        int size = 0;
+        InputStream in = exchange.getRequestBody();
+        int n;
+        while ((n = in.read(bytes, size, bytes.length - size)) >= 0)
+        {
+            size += n;
+            if (size > MAX_MESSAGE_BYTES)
+                return null;
+            if (size == bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.min(bytes.length * 2, MAX_MESSAGE_BYTES + 1));
+        }
+        return ByteBuffer.wrap(bytes, 0, size);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String text)
+    throws IOException
+    {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+}
@@ -0,0 +1,111 @@
+package bayespam;
+
+import java.io.PrintStream;
+
+/// Counts of the decisions of a classifier on labelled messages. Spam is the positive class:
+///
+///     regular classified as regular: true negative,  regular classified as spam:    false positive (false alarm)
+///     spam classified as spam:       true positive,  spam classified as regular:    false negative (miss)
+///
+/// The false accept rate (FAR) is the fraction of the spam that is accepted as regular, the false reject rate
+/// (FRR) the fraction of the regular messages that is rejected as spam. Matrices of parts of a test set can be
+/// merged into the matrix of the whole set. A matrix is not thread safe, every thread counts in its own matrix.
+public final class ConfusionMatrix
+{
+    private long trueNegatives;
+    private long falsePositives;
+    private long truePositives;
+    private long falseNegatives;
+
+    /// Count the decision for a message of the given type
+    public void add(Bayespam.MessageType type, boolean classifiedAsSpam)
+    {
+        if (type == Bayespam.MessageType.NORMAL)
+        {
+            if (classifiedAsSpam)
+                ++falsePositives;
+            else
+                ++trueNegatives;
+        }
+        else
+        {
+            if (classifiedAsSpam)
+                ++truePositives;
+            else
+                ++falseNegatives;
+        }
+    }
+
+    /// Add the counts of another matrix to this one
+    public void merge(ConfusionMatrix other)
+    {
+        trueNegatives += other.trueNegatives;
+        falsePositives += other.falsePositives;
+        truePositives += other.truePositives;
+        falseNegatives += other.falseNegatives;
+    }
+
+    public long correctRegular()
+    {
+        return trueNegatives;
+    }
+
+    public long falseRegular()
+    {
+        return falsePositives;
+    }
+
+    public long correctSpam()
+    {
+        return truePositives;
+    }
+
+    public long falseSpam()
+    {
+        return falseNegatives;
+    }
+
+    /// Number of messages counted
+    public long total()
+    {
+        return trueNegatives + falsePositives + truePositives + falseNegatives;
+    }
+
+    /// Fraction of the messages that is classified correctly
+    public double accuracy()
+    {
+        return ratio(trueNegatives + truePositives, total());
+    }
+
+    /// False accept rate: fraction of the spam that is classified as regular (misses)
+    public double far()
+    {
+        return ratio(falseNegatives, truePositives + falseNegatives);
+    }
+
+    /// False reject rate: fraction of the regular messages that is classified as spam (false alarms)
+    public double frr()
+    {
+        return ratio(falsePositives, trueNegatives + falsePositives);
+    }
+
+    /// Print the accuracy, the matrix and the error rates
+    public void print(PrintStream out)
+    {
+        out.println("Percentage correct: " + accuracy() * 100 + "\n");
+        out.println("Confusion matrix:\n");
+        out.println("        |correct|\tfalse");
+        out.println("-----------------------------");
+        out.println("regular |" + trueNegatives + " \t|\t" + falsePositives);
+        out.println("-----------------------------");
+        out.println("spam    |" + truePositives + "\t|\t" + falseNegatives);
+        out.println();
+        out.println("FAR (spam accepted as regular): " + far() * 100 + "%");
+        out.println("FRR (regular rejected as spam): " + frr() * 100 + "%");
+    }
+
+    private static double ratio(long count, long total)
+    {
+        return total == 0 ? 0 : (double) count / total;
+    }
+}
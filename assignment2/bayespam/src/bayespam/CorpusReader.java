@@ -0,0 +1,85 @@
+package bayespam;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/// Reads message files straight into a tokenizer. The bytes are never decoded to characters (see Tokenizer).
+/// Mail files are small, so a file is normally read with a single read into a buffer that is reused for every
+/// file; only files larger than MAP_THRESHOLD are memory mapped instead, since mapping has a fixed cost that
+/// is only worth paying for big files. A reader is not thread safe, every thread needs its own reader.
+public final class CorpusReader
+{
+    // Files larger than this are memory mapped
+    static final int MAP_THRESHOLD = 1 << 20;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+
+    /// Give all words of a message file to the sink. Returns false when the sink stopped early.
+    public boolean read(File message, Tokenizer tokenizer, Tokenizer.Sink sink)
+    throws IOException
+    {
+        ByteBuffer bytes = load(message);
+        tokenizer.reset();
+        return tokenizer.feed(bytes, sink) && tokenizer.finish(sink);
+    }
+
+    /// All bytes of a message file, from position 0 up to the limit of the returned buffer.
+    /// The buffer is only valid until the next call of the reader.
+    public ByteBuffer load(File message)
+    throws IOException
+    {
+        FileChannel channel = FileChannel.open(message.toPath(), StandardOpenOption.READ);
+        try
+        {
+            long size = channel.size();
+            if (size > MAP_THRESHOLD)
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            ensureCapacity((int) size + 1);
+            buffer.clear();
+            /// The size is only a hint (the file may change while it is read), so read until the end of the file
+            while (channel.read(buffer) >= 0)
+            {
+                if (!buffer.hasRemaining())
+                    ensureCapacity(buffer.capacity() * 2);
+            }
+            buffer.flip();
+            return buffer;
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /// All bytes of a message read from a stream, like load(File). The stream is not closed.
+    public ByteBuffer load(InputStream message)
+    throws IOException
+    {
+        buffer.clear();
+        int n;
+        while ((n = message.read(buffer.array(), buffer.position(), buffer.remaining())) >= 0)
+        {
+            buffer.position(buffer.position() + n);
+            if (!buffer.hasRemaining())
+                ensureCapacity(buffer.capacity() * 2);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // Grow the buffer to at least the given capacity, keeping its content
+    private void ensureCapacity(int capacity)
+    {
+        if (capacity <= buffer.capacity())
+            return;
+        ByteBuffer bigger = ByteBuffer.allocate(Integer.highestOneBit(capacity - 1) << 1);
+        buffer.flip();
+        bigger.put(buffer);
+        buffer = bigger;
+    }
+}
@@ -0,0 +1,379 @@
+package bayespam;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/// A corpus that is tokenized once ("compiled") into a single binary file, so training and testing on it
+/// again skip walking the directories, reading the mail files and tokenizing them. Every message is stored
+/// as its label and the ids of its features (words or n-grams) in order, the features themselves are stored
+/// once in a dictionary. The features depend on the FeatureExtractor options and the word size threshold,
+/// so these are part of the file and a segment can only be used with models that have the same settings.
+///
+/// The file is big endian and laid out as:
+///     int    magic ("BSPC") and int version
+///     int    word size threshold and int FeatureExtractor options the messages were tokenized with
+///     per message: byte label (0 regular, 1 spam), varint number of features, varint feature ids
+///     int    number of features in the dictionary
+///     per feature: int length, the UTF-8 bytes of the feature
+///     long   offset of the dictionary, int number of regular and int number of spam messages
+///
+/// A varint is 7 bits per byte, low bits first, with the high bit set on all but the last byte, so the ids
+/// of common words (which are found first and get low ids) mostly take one or two bytes. The reader memory
+/// maps the file and decodes the messages straight from the mapping, one message at a time; for testing the
+/// messages are split into ranges that are scored in parallel (see Evaluator).
+public final class CorpusSegment
+{
+    static final int MAGIC = 0x42535043;
+    static final int VERSION = 1;
+
+    // Size of the header at the start and of the trailer at the end of the file
+    private static final int HEADER = 16;
+    private static final int TRAILER = 16;
+
+    final int wordSizeThreshold;
+    final int features;
+    final String[] words;
+    final int nMessagesRegular;
+    final int nMessagesSpam;
+
+    // The mapped file and the offset of the dictionary, where the messages end
+    private final ByteBuffer buffer;
+    private final int end;
+
+    /// Receives the messages of a segment
+    interface Visitor
+    {
+        /// Called for every message with the ids of its features in ids[0] up to ids[count - 1],
+        /// which are only valid during the call
+        void message(Bayespam.MessageType type, int[] ids, int count);
+    }
+
+    private CorpusSegment(ByteBuffer buffer, int end, int wordSizeThreshold, int features, String[] words,
+                          int nMessagesRegular, int nMessagesSpam)
+    {
+        this.buffer = buffer;
+        this.end = end;
+        this.wordSizeThreshold = wordSizeThreshold;
+        this.features = features;
+        this.words = words;
+        this.nMessagesRegular = nMessagesRegular;
+        this.nMessagesSpam = nMessagesSpam;
+    }
+
+    /// Tokenize the messages in the regular/ and spam/ subdirectories of a directory into a segment file.
+    /// The directories are streamed, so they are never listed as a whole.
+    static void compile(File regularDir, File spamDir, File file, int features, int wordSizeThreshold)
+    throws IOException
+    {
+        FileOutputStream stream = new FileOutputStream(file);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(wordSizeThreshold);
+            out.writeInt(features);
+
+            Compiler compiler = new Compiler(features, wordSizeThreshold);
+            int nRegular = compiler.compile(regularDir, Bayespam.MessageType.NORMAL, out);
+            int nSpam = compiler.compile(spamDir, Bayespam.MessageType.SPAM, out);
+
+            out.flush();
+            long dictionary = stream.getChannel().position();
+            out.writeInt(compiler.index.size());
+            for (int id = 0; id < compiler.index.size(); ++id)
+            {
+                byte[] bytes = compiler.index.term(id).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.writeLong(dictionary);
+            out.writeInt(nRegular);
+            out.writeInt(nSpam);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /// Open a segment file written by compile()
+    static CorpusSegment open(File file)
+    throws IOException
+    {
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            FileChannel channel = in.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("- Error: " + file + " is too large to map, split the corpus into more segments");
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER + TRAILER || buffer.getInt() != MAGIC)
+                throw new IOException("- Error: " + file + " is not a corpus segment");
+            int version = buffer.getInt();
+            if (version != VERSION)
+                throw new IOException("- Error: " + file + " has segment version " + version + ", expected " + VERSION);
+            int wordSizeThreshold = buffer.getInt();
+            int features = buffer.getInt();
+
+            int end = (int) buffer.getLong(buffer.limit() - TRAILER);
+            int nRegular = buffer.getInt(buffer.limit() - TRAILER + 8);
+            int nSpam = buffer.getInt(buffer.limit() - TRAILER + 12);
+
+            ByteBuffer dictionary = buffer.duplicate();
+            dictionary.position(end);
+            String[] words = new String[dictionary.getInt()];
+            byte[] bytes = new byte[64];
+            for (int id = 0; id < words.length; ++id)
+            {
+                int length = dictionary.getInt();
+                if (length > bytes.length)
+                    bytes = new byte[Math.max(length, bytes.length * 2)];
+                dictionary.get(bytes, 0, length);
+                words[id] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+            }
+            return new CorpusSegment(buffer, end, wordSizeThreshold, features, words, nRegular, nSpam);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /// Whether a file is a corpus segment (and not, for example, a directory)
+    static boolean isSegment(File file)
+    throws IOException
+    {
+        if (!file.isFile())
+            return false;
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try
+        {
+            return file.length() >= 4 && in.readInt() == MAGIC;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /// Give every message of the segment to the visitor, regular messages first
+    void forEach(Visitor visitor)
+    {
+        forEach(visitor, HEADER, end);
+    }
+
+    /// Give the messages that start at byte from up to byte to of the file to the visitor, from and to must be
+    /// the start of a message (see split()) or the end of the messages
+    void forEach(Visitor visitor, int from, int to)
+    {
+        ByteBuffer messages = buffer.duplicate();
+        messages.position(from);
+        int[] ids = new int[256];
+        while (messages.position() < to)
+        {
+            Bayespam.MessageType type = messages.get() == 0 ? Bayespam.MessageType.NORMAL : Bayespam.MessageType.SPAM;
+            int count = readVarint(messages);
+            if (count > ids.length)
+                ids = new int[Math.max(count, ids.length * 2)];
+            for (int i = 0; i < count; ++i)
+                ids[i] = readVarint(messages);
+            visitor.message(type, ids, count);
+        }
+    }
+
+    /// Split the messages into at most parts ranges of about the same number of bytes, for visiting them in
+    /// parallel. Returns the offsets of the ranges, the first and the last are the start and the end of the
+    /// messages. The ids are skipped without decoding them, so this costs a fraction of a forEach().
+    int[] split(int parts)
+    {
+        int[] offsets = new int[parts + 1];
+        offsets[0] = HEADER;
+        int n = 1;
+        ByteBuffer messages = buffer.duplicate();
+        messages.position(HEADER);
+        while (messages.position() < end && n < parts)
+        {
+            messages.get();
+            int count = readVarint(messages);
+            for (int i = 0; i < count; ++i)
+            {
+                while (messages.get() < 0)
+                    ;
+            }
+            if (messages.position() < end
+                && messages.position() - HEADER >= (long) (end - HEADER) * n / parts)
+                offsets[n++] = messages.position();
+        }
+        offsets[n++] = end;
+        return Arrays.copyOf(offsets, n);
+    }
+
+    /// The counts of all features of the segment
+    Vocabulary count()
+    {
+        final int[] regular = new int[words.length];
+        final int[] spam = new int[words.length];
+        forEach(new Visitor()
+        {
+            public void message(Bayespam.MessageType type, int[] ids, int count)
+            {
+                int[] counts = type == Bayespam.MessageType.NORMAL ? regular : spam;
+                for (int i = 0; i < count; ++i)
+                    ++counts[ids[i]];
+            }
+        });
+        Vocabulary vocab = new Vocabulary(words.length);
+        for (int id = 0; id < words.length; ++id)
+            vocab.addCounts(words[id], regular[id], spam[id]);
+        return vocab;
+    }
+
+    /// The log likelihood ratio of every feature of the dictionary in a model, so scoring a message is only
+    /// adding up numbers. The model must have the settings of the segment.
+    double[] llr(ScoringModel model)
+    throws IOException
+    {
+        if (model.features() != features || model.wordSizeThreshold() != wordSizeThreshold)
+            throw new IOException("- Error: the segment was tokenized with other settings than the model was trained with");
+        double[] llr = new double[words.length];
+        for (int id = 0; id < words.length; ++id)
+            llr[id] = model.llr(words[id]);
+        return llr;
+    }
+
+    public static void main(String[] args)
+    throws IOException
+    {
+        /// Usage: CorpusSegment <corpus dir> <segment file> [flags]
+        /// Tokenizes the messages in the two subdirectories of <corpus dir> (regular before spam when sorted by
+        /// name, like Bayespam) into a segment file, which Bayespam can use instead of the directory for
+        /// training or testing.
+        /// Flags: -headers           use header tokens and skip base64 and very long bodies
+        ///        -ngrams <n>[-<m>]  use n-grams of order n (up to m) instead of words
+        ///        -minlength <n>     words must be longer than n characters
+        int features = 0;
+        int wordSizeThreshold = Bayespam.wordSizeThreshold;
+        File[] files = new File[2];
+        int nFiles = 0;
+        for (int i = 0; i < args.length; ++i)
+        {
+            if (args[i].equals("-headers"))
+                features |= FeatureExtractor.HEADERS;
+            else if (args[i].equals("-ngrams") && i + 1 < args.length)
+            {
+                String[] orders = args[++i].split("-");
+                features = (features & ~FeatureExtractor.ORDERS)
+                         | FeatureExtractor.ngrams(Integer.parseInt(orders[0]), Integer.parseInt(orders[orders.length - 1]));
+            }
+            else if (args[i].equals("-minlength") && i + 1 < args.length)
+                wordSizeThreshold = Integer.parseInt(args[++i]);
+            else if (nFiles < 2)
+                files[nFiles++] = new File(args[i]);
+            else
+            {
+                System.out.println("- Error: unknown argument " + args[i] + "\n");
+                Runtime.getRuntime().exit(0);
+            }
+        }
+        if (nFiles < 2 || !files[0].isDirectory())
+        {
+            System.out.println("- Error: usage: CorpusSegment <corpus dir> <segment file> [flags]\n");
+            Runtime.getRuntime().exit(0);
+        }
+
+        File[] classes = Bayespam.subDirs(files[0]);
+        compile(classes[0], classes[1], files[1], features, wordSizeThreshold);
+        CorpusSegment segment = open(files[1]);
+        System.out.println("Compiled " + (segment.nMessagesRegular + segment.nMessagesSpam) + " messages with "
+                           + segment.words.length + " features into " + files[1] + " (" + files[1].length() + " bytes)");
+    }
+
+    private static int readVarint(ByteBuffer buffer)
+    {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+            b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        }
+        while (b < 0);
+        return value;
+    }
+
+    // Writes the messages of directories as feature ids, numbering new features as they are found
+    private static final class Compiler implements FeatureExtractor.IdSink
+    {
+        final TermIndex index = new TermIndex(1024);
+        final FeatureExtractor extractor;
+
+        // The ids of the message that is being compiled
+        private int[] ids = new int[256];
+        private int count;
+
+        Compiler(int features, int wordSizeThreshold)
+        {
+            extractor = new FeatureExtractor(features, wordSizeThreshold, index, true);
+        }
+
+        public boolean feature(int id)
+        {
+            if (count == ids.length)
+                ids = Arrays.copyOf(ids, count * 2);
+            ids[count++] = id;
+            return true;
+        }
+
+        // Write all messages of a directory, the number of messages is returned
+        int compile(File dir, Bayespam.MessageType type, DataOutputStream out)
+        throws IOException
+        {
+            int nMessages = 0;
+            DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath());
+            try
+            {
+                for (Path message : stream)
+                {
+                    count = 0;
+                    extractor.extract(message.toFile(), this);
+                    out.writeByte(type == Bayespam.MessageType.NORMAL ? 0 : 1);
+                    writeVarint(out, count);
+                    for (int i = 0; i < count; ++i)
+                        writeVarint(out, ids[i]);
+                    ++nMessages;
+                }
+            }
+            catch (DirectoryIteratorException e)
+            {
+                throw e.getCause();
+            }
+            finally
+            {
+                stream.close();
+            }
+            return nMessages;
+        }
+
+        private static void writeVarint(DataOutputStream out, int value)
+        throws IOException
+        {
+            while ((value & ~0x7f) != 0)
+            {
+                out.writeByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+    }
+}
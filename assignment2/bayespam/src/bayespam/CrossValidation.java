@@ -0,0 +1,459 @@
+package bayespam;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/// k-fold cross-validation of the classifier over a grid of word size thresholds and minimum counts.
+///
+/// The corpus is read from disk once. For every word size threshold the messages are tokenized once into
+/// arrays of term ids of a single vocabulary, with the counts of every term in every fold. The model of fold
+/// f is trained on all other folds, so its counts are the counts of the whole corpus minus those of fold f;
+/// no message is counted again. The minimum counts are applied to these counts, so trying another minimum
+/// count costs nothing but scoring. The held out messages are scored by adding up the log likelihood ratios
+/// of their term ids, exactly like a ScoringModel trained on the other folds would score them. All folds of
+/// all settings are trained and scored in parallel.
+///
+/// The messages are split into folds per class (stratified), in a random order with a fixed seed, so every
+/// fold has about the same fraction of spam and the folds are the same in every run.
+public final class CrossValidation
+{
+    static final long SEED = 42;
+
+    private final int folds;
+    private final int features;
+
+    // The messages, their class and their fold
+    private final List<ByteBuffer> messages = new ArrayList<>();
+    private final List<Bayespam.MessageType> types = new ArrayList<>();
+    private int[] fold;
+
+    public CrossValidation(int folds, int features)
+    {
+        if (folds < 2)
+            throw new IllegalArgumentException("cross-validation needs at least 2 folds: " + folds);
+        this.folds = folds;
+        this.features = features;
+    }
+
+    /// Add the messages in the regular/ and spam/ subdirectories of a directory to the corpus
+    public void addCorpus(File dir)
+    throws IOException
+    {
+        File[] regular = new File(dir, "regular").listFiles();
+        File[] spam = new File(dir, "spam").listFiles();
+        if (regular == null || spam == null)
+            throw new IOException("- Error: " + dir + " does not contain the directories regular and spam");
+        for (File file : regular)
+            add(file, Bayespam.MessageType.NORMAL);
+        for (File file : spam)
+            add(file, Bayespam.MessageType.SPAM);
+        fold = null;
+    }
+
+    /// Number of messages in the corpus
+    public int size()
+    {
+        return messages.size();
+    }
+
+    /// Cross-validate every combination of a word size threshold and a minimum count with nThreads threads.
+    /// The result of every combination is the confusion matrix of every fold.
+    public Result[] run(int[] wordSizeThresholds, int[] minCounts, int nThreads)
+    throws IOException
+    {
+        assignFolds();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, nThreads));
+        try
+        {
+            List<Result> results = new ArrayList<>();
+            List<Future<ConfusionMatrix>> scored = new ArrayList<>();
+            for (int wordSizeThreshold : wordSizeThresholds)
+            {
+                final Terms terms = tokenize(wordSizeThreshold, pool, nThreads);
+                for (final int minCount : minCounts)
+                {
+                    Result result = new Result(wordSizeThreshold, minCount, folds);
+                    results.add(result);
+                    for (int f = 0; f < folds; ++f)
+                    {
+                        final int heldOut = f;
+                        scored.add(pool.submit(new Callable<ConfusionMatrix>()
+                        {
+                            public ConfusionMatrix call()
+                            {
+                                return terms.evaluate(heldOut, minCount);
+                            }
+                        }));
+                    }
+                }
+            }
+            int next = 0;
+            for (Result result : results)
+            {
+                for (int f = 0; f < folds; ++f)
+                    result.matrices[f] = scored.get(next++).get();
+            }
+            return results.toArray(new Result[0]);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("- Error: interrupted while cross-validating", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException(e.getCause());
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    public static void main(String[] args)
+    throws IOException
+    {
+        /// Usage: CrossValidation <corpus dir> [<corpus dir> ...] [flags]
+        /// The messages of all corpus directories (each with regular/ and spam/) are pooled.
+        /// Flags: -folds <k>             number of folds (default 10)
+        ///        -minlength <n>[,<n>]   word size thresholds to try (default 4)
+        ///        -mincount <n>[,<n>]    minimum counts to try (default 1)
+        ///        -headers               use header tokens and skip base64 and very long bodies
+        ///        -ngrams <n>[-<m>]      use n-grams of order n (up to m) instead of words
+        ///        -threads <n>           number of threads
+        int folds = 10;
+        int[] wordSizeThresholds = { Bayespam.wordSizeThreshold };
+        int[] minCounts = { 1 };
+        int features = 0;
+        int nThreads = Bayespam.nThreads;
+        List<File> dirs = new ArrayList<>();
+        for (int i = 0; i < args.length; ++i)
+        {
+            if (args[i].equals("-folds") && i + 1 < args.length)
+                folds = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-minlength") && i + 1 < args.length)
+                wordSizeThresholds = parseList(args[++i]);
+            else if (args[i].equals("-mincount") && i + 1 < args.length)
+                minCounts = parseList(args[++i]);
+            else if (args[i].equals("-headers"))
+                features |= FeatureExtractor.HEADERS;
+            else if (args[i].equals("-ngrams") && i + 1 < args.length)
+            {
+                String[] orders = args[++i].split("-");
+                features = (features & ~FeatureExtractor.ORDERS)
+                         | FeatureExtractor.ngrams(Integer.parseInt(orders[0]), Integer.parseInt(orders[orders.length - 1]));
+            }
+            else if (args[i].equals("-threads") && i + 1 < args.length)
+                nThreads = Integer.parseInt(args[++i]);
+            else
+                dirs.add(new File(args[i]));
+        }
+        if (dirs.isEmpty())
+        {
+            System.out.println("- Error: no corpus directory given.\n");
+            Runtime.getRuntime().exit(0);
+        }
+
+        CrossValidation validation = new CrossValidation(folds, features);
+        for (File dir : dirs)
+            validation.addCorpus(dir);
+        System.out.println(folds + "-fold cross-validation on " + validation.size() + " messages");
+        Result[] results = validation.run(wordSizeThresholds, minCounts, nThreads);
+        Result.printHeader(System.out);
+        for (Result result : results)
+            result.print(System.out);
+    }
+
+    /// The confusion matrices of the folds of one combination of settings
+    public static final class Result
+    {
+        public final int wordSizeThreshold;
+        public final int minCount;
+        final ConfusionMatrix[] matrices;
+
+        Result(int wordSizeThreshold, int minCount, int folds)
+        {
+            this.wordSizeThreshold = wordSizeThreshold;
+            this.minCount = minCount;
+            matrices = new ConfusionMatrix[folds];
+        }
+
+        /// The confusion matrix of a fold
+        public ConfusionMatrix fold(int f)
+        {
+            return matrices[f];
+        }
+
+        /// The confusion matrix of all folds together
+        public ConfusionMatrix total()
+        {
+            ConfusionMatrix total = new ConfusionMatrix();
+            for (ConfusionMatrix matrix : matrices)
+                total.merge(matrix);
+            return total;
+        }
+
+        /// Mean accuracy over the folds
+        public double meanAccuracy()
+        {
+            double sum = 0;
+            for (ConfusionMatrix matrix : matrices)
+                sum += matrix.accuracy();
+            return sum / matrices.length;
+        }
+
+        /// Standard deviation of the accuracy over the folds
+        public double stdevAccuracy()
+        {
+            double mean = meanAccuracy();
+            double sum = 0;
+            for (ConfusionMatrix matrix : matrices)
+                sum += (matrix.accuracy() - mean) * (matrix.accuracy() - mean);
+            return Math.sqrt(sum / (matrices.length - 1));
+        }
+
+        static void printHeader(PrintStream out)
+        {
+            out.println(String.format("%9s %8s %10s %8s %8s %8s", "minlength", "mincount", "accuracy", "stdev", "FAR", "FRR"));
+        }
+
+        void print(PrintStream out)
+        {
+            ConfusionMatrix total = total();
+            out.println(String.format("%9d %8d %9.2f%% %7.2f%% %7.2f%% %7.2f%%", wordSizeThreshold, minCount,
+            		100 * meanAccuracy(), 100 * stdevAccuracy(), 100 * total.far(), 100 * total.frr()));
+        }
+    }
+
+    private void add(File file, Bayespam.MessageType type)
+    throws IOException
+    {
+        messages.add(ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+        types.add(type);
+    }
+
+    /// The fold of every message: the messages of each class are shuffled and dealt out over the folds
+    int[] assignFolds()
+    {
+        if (fold != null)
+            return fold;
+        fold = new int[messages.size()];
+        Random random = new Random(SEED);
+        for (Bayespam.MessageType type : Bayespam.MessageType.values())
+        {
+            List<Integer> ofType = new ArrayList<>();
+            for (int m = 0; m < messages.size(); ++m)
+            {
+                if (types.get(m) == type)
+                    ofType.add(m);
+            }
+            Collections.shuffle(ofType, random);
+            for (int i = 0; i < ofType.size(); ++i)
+                fold[ofType.get(i)] = i % folds;
+        }
+        return fold;
+    }
+
+    // Tokenize all messages with a word size threshold into term ids. Parts of the corpus (a few per thread)
+    // are tokenized in parallel on the pool, each into a vocabulary of its own; the ids of the parts are then
+    // mapped to ids of a single vocabulary in message order, so the ids are the same in every run.
+    private Terms tokenize(final int wordSizeThreshold, ExecutorService pool, int nThreads)
+    throws InterruptedException, ExecutionException
+    {
+        final int nParts = Math.max(1, Math.min(messages.size(), 4 * Math.max(1, nThreads)));
+        List<Future<Part>> parts = new ArrayList<>();
+        for (int p = 0; p < nParts; ++p)
+        {
+            final int from = (int) ((long) messages.size() * p / nParts);
+            final int to = (int) ((long) messages.size() * (p + 1) / nParts);
+            parts.add(pool.submit(new Callable<Part>()
+            {
+                public Part call()
+                {
+                    final Part part = new Part(to - from);
+                    FeatureExtractor extractor = new FeatureExtractor(features, wordSizeThreshold, part.index, true);
+                    for (int m = from; m < to; ++m)
+                    {
+                        part.size = 0;
+                        extractor.extract(messages.get(m).duplicate(), part);
+                        part.ids[m - from] = Arrays.copyOf(part.buffer, part.size);
+                    }
+                    return part;
+                }
+            }));
+        }
+
+        Terms terms = new Terms();
+        int m = 0;
+        for (Future<Part> future : parts)
+        {
+            Part part = future.get();
+            int[] global = terms.index.addAll(part.index);
+            for (int[] ids : part.ids)
+            {
+                for (int i = 0; i < ids.length; ++i)
+                    ids[i] = global[ids[i]];
+                terms.add(m++, ids);
+            }
+        }
+        return terms;
+    }
+
+    // The term ids of the messages of a part of the corpus, in an index of the part
+    private static final class Part implements FeatureExtractor.IdSink
+    {
+        final TermIndex index = new TermIndex(1024);
+        final int[][] ids;
+
+        // The ids of the message that is being tokenized
+        int[] buffer = new int[256];
+        int size;
+
+        Part(int nMessages)
+        {
+            ids = new int[nMessages][];
+        }
+
+        public boolean feature(int id)
+        {
+            if (size == buffer.length)
+                buffer = Arrays.copyOf(buffer, size * 2);
+            buffer[size++] = id;
+            return true;
+        }
+    }
+
+    // The corpus as term ids, with the counts of every term per fold and in total
+    private final class Terms
+    {
+        final TermIndex index = new TermIndex(1024);
+        final int[][] ids = new int[messages.size()][];
+
+        // Per fold and per term id the counts in regular and spam messages, and per term id those of all folds
+        int[][] foldRegular = new int[folds][1024];
+        int[][] foldSpam = new int[folds][1024];
+        int[] totalRegular = new int[1024];
+        int[] totalSpam = new int[1024];
+
+        // Per fold the number of regular and spam messages
+        final int[] messagesRegular = new int[folds];
+        final int[] messagesSpam = new int[folds];
+
+        void add(int m, int[] termIds)
+        {
+            int f = fold[m];
+            boolean regular = types.get(m) == Bayespam.MessageType.NORMAL;
+            if (regular)
+                ++messagesRegular[f];
+            else
+                ++messagesSpam[f];
+            if (index.size() > foldRegular[0].length)
+            {
+                int capacity = Math.max(index.size(), foldRegular[0].length * 2);
+                for (int g = 0; g < folds; ++g)
+                {
+                    foldRegular[g] = Arrays.copyOf(foldRegular[g], capacity);
+                    foldSpam[g] = Arrays.copyOf(foldSpam[g], capacity);
+                }
+                totalRegular = Arrays.copyOf(totalRegular, capacity);
+                totalSpam = Arrays.copyOf(totalSpam, capacity);
+            }
+            for (int id : termIds)
+            {
+                if (regular)
+                {
+                    ++foldRegular[f][id];
+                    ++totalRegular[id];
+                }
+                else
+                {
+                    ++foldSpam[f][id];
+                    ++totalSpam[id];
+                }
+            }
+            ids[m] = termIds;
+        }
+
+        // Train on all folds but one, the way Bayespam.train() does, and score the messages of that fold
+        ConfusionMatrix evaluate(int heldOut, int minCount)
+        {
+            int size = index.size();
+            double nMessagesRegular = 0;
+            double nMessagesSpam = 0;
+            for (int f = 0; f < folds; ++f)
+            {
+                if (f != heldOut)
+                {
+                    nMessagesRegular += messagesRegular[f];
+                    nMessagesSpam += messagesSpam[f];
+                }
+            }
+
+            /// The counts of the other folds (all counts minus those of the held out fold), without the terms
+            /// that occur less than minCount times there
+            int[] countRegular = new int[size];
+            int[] countSpam = new int[size];
+            double nWordsRegular = 0;
+            double nWordsSpam = 0;
+            for (int id = 0; id < size; ++id)
+            {
+                countRegular[id] = totalRegular[id] - foldRegular[heldOut][id];
+                countSpam[id] = totalSpam[id] - foldSpam[heldOut][id];
+                if (countRegular[id] + countSpam[id] < Math.max(1, minCount))
+                {
+                    countRegular[id] = 0;
+                    countSpam[id] = 0;
+                }
+                nWordsRegular += countRegular[id];
+                nWordsSpam += countSpam[id];
+            }
+
+            double logAPrioriRegular = Math.log(nMessagesRegular / (nMessagesRegular + nMessagesSpam));
+            double logAPrioriSpam = Math.log(nMessagesSpam / (nMessagesRegular + nMessagesSpam));
+            double nWordsTotal = nWordsRegular + nWordsSpam;
+            double[] llr = new double[size];
+            for (int id = 0; id < size; ++id)
+            {
+                /// Terms that are not in the model add nothing, like unknown words in a ScoringModel
+                if (countRegular[id] + countSpam[id] > 0)
+                    llr[id] = ScoringModel.llr(Bayespam.logProbability(countSpam[id], nWordsSpam, nWordsTotal),
+                                               Bayespam.logProbability(countRegular[id], nWordsRegular, nWordsTotal),
+                                               logAPrioriRegular, logAPrioriSpam);
+            }
+
+            ConfusionMatrix matrix = new ConfusionMatrix();
+            for (int m = 0; m < ids.length; ++m)
+            {
+                if (fold[m] != heldOut)
+                    continue;
+                double score = logAPrioriSpam - logAPrioriRegular;
+                for (int id : ids[m])
+                    score += llr[id];
+                matrix.add(types.get(m), SpamClassifier.isSpam(score));
+            }
+            return matrix;
+        }
+    }
+
+    private static int[] parseList(String list)
+    {
+        String[] items = list.split(",");
+        int[] values = new int[items.length];
+        for (int i = 0; i < items.length; ++i)
+            values[i] = Integer.parseInt(items[i].trim());
+        return values;
+    }
+}
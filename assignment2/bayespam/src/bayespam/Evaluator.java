@@ -0,0 +1,210 @@
+package bayespam;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/// Evaluates a classifier on a labelled test set on a fork/join pool. Every message is scored, counted in a
+/// confusion matrix (and optionally in a score histogram) and then forgotten, so no per-message results are kept
+/// unless a ThresholdSweep is given, which keeps the score of every message (8 bytes per message).
+///
+/// A test set given as directories is streamed: the directories are read while the messages are scored, so
+/// not even a listing of the files is held and the memory used does not depend on the size of the test set.
+/// A test set given as a CorpusSegment is already tokenized: its messages are split into one range of the
+/// mapped file per thread, and a message is scored by adding up the log likelihood ratios of its feature ids.
+/// Every thread of the pool scores into its own confusion matrix and the matrices are merged at the end.
+/// The classifier is shared by all threads, it is never changed.
+public final class Evaluator
+{
+    private final SpamClassifier classifier;
+    private final ForkJoinPool pool;
+    private final ScoreHistogram histogram;
+    private final ThresholdSweep sweep;
+
+    public Evaluator(SpamClassifier classifier, ForkJoinPool pool)
+    {
+        this(classifier, pool, null);
+    }
+
+    /// An evaluator that also counts the scores of the messages in the given histogram
+    public Evaluator(SpamClassifier classifier, ForkJoinPool pool, ScoreHistogram histogram)
+    {
+        this(classifier, pool, histogram, null);
+    }
+
+    /// An evaluator that also counts the scores in the given histogram and keeps them in the given sweep;
+    /// either may be null
+    public Evaluator(SpamClassifier classifier, ForkJoinPool pool, ScoreHistogram histogram, ThresholdSweep sweep)
+    {
+        this.classifier = classifier;
+        this.pool = pool;
+        this.histogram = histogram;
+        this.sweep = sweep;
+    }
+
+    /// Score all messages in a directory of regular and a directory of spam messages while the directories
+    /// are read, and count the decisions
+    public ConfusionMatrix evaluate(File regularDir, File spamDir)
+    throws IOException
+    {
+        ConfusionMatrix matrix = new ConfusionMatrix();
+        stream(regularDir, Bayespam.MessageType.NORMAL, matrix);
+        stream(spamDir, Bayespam.MessageType.SPAM, matrix);
+        return matrix;
+    }
+
+    /// Score all messages of a compiled corpus, which must have the settings of the model, and count the
+    /// decisions. The whole message is always scored, also by a classifier that stops early.
+    public ConfusionMatrix evaluate(final CorpusSegment segment)
+    throws IOException
+    {
+        final double[] llr = segment.llr(classifier.model());
+        final double prior = classifier.model().priorLogOdds();
+        final ClassifierMetrics metrics = classifier.metrics();
+        final int[] ranges = segment.split(pool.getParallelism());
+        List<Callable<ConfusionMatrix>> workers = new ArrayList<>();
+        for (int r = 0; r + 1 < ranges.length; ++r)
+        {
+            final int from = ranges[r];
+            final int to = ranges[r + 1];
+            workers.add(new Callable<ConfusionMatrix>()
+            {
+                public ConfusionMatrix call()
+                {
+                    final ConfusionMatrix counts = new ConfusionMatrix();
+                    final ScoreHistogram scores = histogram == null ? null : histogram.emptyCopy();
+                    final ThresholdSweep kept = sweep == null ? null : sweep.emptyCopy();
+                    segment.forEach(new CorpusSegment.Visitor()
+                    {
+                        public void message(Bayespam.MessageType type, int[] ids, int count)
+                        {
+                            long start = metrics == null ? 0 : System.nanoTime();
+                            double score = prior;
+                            for (int i = 0; i < count; ++i)
+                                score += llr[ids[i]];
+                            if (metrics != null)
+                                metrics.scored(count, System.nanoTime() - start);
+                            Evaluator.count(score, type, counts, scores, kept);
+                        }
+                    }, from, to);
+                    mergeScores(scores, kept);
+                    return counts;
+                }
+            });
+        }
+        ConfusionMatrix matrix = new ConfusionMatrix();
+        try
+        {
+            for (Future<ConfusionMatrix> result : pool.invokeAll(workers))
+                matrix.merge(result.get());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("- Error: interrupted while scoring the messages of the segment", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException(e.getCause());
+        }
+        return matrix;
+    }
+
+    // Score the messages of a directory with one worker per thread of the pool, every worker takes the
+    // next file from the directory stream until it is empty
+    private void stream(File dir, final Bayespam.MessageType type, ConfusionMatrix matrix)
+    throws IOException
+    {
+        DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath());
+        try
+        {
+            final Iterator<Path> messages = stream.iterator();
+            List<Callable<ConfusionMatrix>> workers = new ArrayList<>();
+            for (int w = 0; w < pool.getParallelism(); ++w)
+            {
+                workers.add(new Callable<ConfusionMatrix>()
+                {
+                    public ConfusionMatrix call()
+                    throws IOException
+                    {
+                        ConfusionMatrix counts = new ConfusionMatrix();
+                        ScoreHistogram scores = histogram == null ? null : histogram.emptyCopy();
+                        ThresholdSweep kept = sweep == null ? null : sweep.emptyCopy();
+                        while (true)
+                        {
+                            Path message;
+                            synchronized (messages)
+                            {
+                                if (!messages.hasNext())
+                                    break;
+                                message = messages.next();
+                            }
+                            count(classifier.classify(message.toFile()), type, counts, scores, kept);
+                        }
+                        mergeScores(scores, kept);
+                        return counts;
+                    }
+                });
+            }
+            for (Future<ConfusionMatrix> result : pool.invokeAll(workers))
+                matrix.merge(result.get());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("- Error: interrupted while scoring the messages in " + dir, e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof DirectoryIteratorException)
+                throw ((DirectoryIteratorException) e.getCause()).getCause();
+            throw new IOException(e.getCause());
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    // Count the score of a message in a matrix and, if there are, a histogram and a sweep
+    private static void count(double score, Bayespam.MessageType type, ConfusionMatrix matrix, ScoreHistogram scores,
+                              ThresholdSweep kept)
+    {
+        matrix.add(type, SpamClassifier.isSpam(score));
+        if (scores != null)
+            scores.add(type, score);
+        if (kept != null)
+            kept.add(type, score);
+    }
+
+    // Add the histogram and the sweep of one thread to those of the evaluator
+    private void mergeScores(ScoreHistogram scores, ThresholdSweep kept)
+    {
+        if (scores != null)
+        {
+            synchronized (histogram)
+            {
+                histogram.merge(scores);
+            }
+        }
+        if (kept != null)
+        {
+            synchronized (sweep)
+            {
+                sweep.merge(kept);
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package bayespam;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/// Turns a message into the words (features) that are counted and scored. Without options every white space
+/// separated word of the message is used (see Tokenizer). With HEADERS the message is parsed first: the headers
+/// give header tokens and only the useful part of the body is tokenized (see MessageParser). With ngrams() the
+/// words of the body are turned into n-grams of the chosen orders, all in the same pass (see NGramWindow);
+/// header tokens are always single features.
+///
+/// An extractor that is bound to a TermIndex can also give the features as their ids in that index (see
+/// IdSink), which is how the models count and score them: an n-gram is then looked up by the ids of its
+/// words and never made into text (see NGramWindow).
+///
+/// The options are part of a trained model, a model must be used with the options it was trained with.
+/// An extractor is not thread safe, every thread needs its own extractor.
+public final class FeatureExtractor
+{
+    /// Option: parse headers and body separately
+    public static final int HEADERS = 1;
+
+    /// Highest n-gram order
+    public static final int MAX_ORDER = 4;
+
+    // Bits of the n-gram orders in the options, bit n for order n; none set means words only
+    static final int ORDERS = ((1 << (MAX_ORDER + 1)) - 1) & ~1;
+
+    /// Receives the features of a message as ids in a TermIndex
+    interface IdSink
+    {
+        /// Called for every feature with its id, or -1 when it is not in the index. Return false to stop
+        /// extracting the rest of the message.
+        boolean feature(int id);
+    }
+
+    private final int features;
+    private final Tokenizer tokenizer;
+    private final CorpusReader reader = new CorpusReader();
+    private final MessageParser parser;
+    private final NGramWindow window;
+
+    // The window that gives the ids of words and n-grams, and the ids of the header tokens; null when the
+    // extractor is not bound to a TermIndex
+    private final NGramWindow idWindow;
+    private final HeaderIds headerIds;
+
+    // Fewest bytes of a message that one feature takes, including the byte that ends it, and the number
+    // of features that may end at the same word
+    private final int minFeatureBytes;
+    private final int featuresPerWord;
+
+    // Number of bytes (or characters) of the message that is being extracted
+    private int messageSize;
+
+    public FeatureExtractor(int features, int wordSizeThreshold)
+    {
+        this(features, wordSizeThreshold, null, false);
+    }
+
+    /// An extractor that can also give the ids of the features in an index, and adds the features that are
+    /// not in it when add is set
+    FeatureExtractor(int features, int wordSizeThreshold, TermIndex terms, boolean add)
+    {
+        this.features = features;
+        tokenizer = new Tokenizer(wordSizeThreshold);
+        parser = (features & HEADERS) != 0 ? new MessageParser(MessageParser.MAX_BODY_BYTES) : null;
+        minFeatureBytes = (parser == null ? wordSizeThreshold + 1 : Math.min(wordSizeThreshold + 1, MessageParser.MIN_HEADER_TOKEN)) + 1;
+        int orders = features & ORDERS;
+        window = orders != 0 && orders != 1 << 1 ? new NGramWindow(orders, tokenizer) : null;
+        featuresPerWord = Math.max(1, Integer.bitCount(orders));
+        idWindow = terms == null ? null : new NGramWindow(orders == 0 ? 1 << 1 : orders, tokenizer, terms, add);
+        headerIds = terms == null ? null : new HeaderIds(terms, add);
+    }
+
+    /// Take the ids from another index from now on, or from none when it is null. The extractor must have been
+    /// made with an index; its buffers are kept, so it can be used for all models with the same options.
+    void bind(TermIndex terms)
+    {
+        idWindow.bind(terms);
+        headerIds.terms = terms;
+    }
+
+    /// The option for n-grams of the orders minOrder up to maxOrder, e.g. ngrams(1, 2) for words and bigrams
+    public static int ngrams(int minOrder, int maxOrder)
+    {
+        if (minOrder < 1 || minOrder > maxOrder || maxOrder > MAX_ORDER)
+            throw new IllegalArgumentException("n-gram orders must be in 1.." + MAX_ORDER + ": " + minOrder + ".." + maxOrder);
+        if (maxOrder == 1)
+            return 0;
+        return ((1 << (maxOrder + 1)) - 1) & ~((1 << minOrder) - 1);
+    }
+
+    /// The options of this extractor
+    public int features()
+    {
+        return features;
+    }
+
+    /// Number of bytes (or characters) of the message that is being, or was last, extracted
+    public int messageSize()
+    {
+        return messageSize;
+    }
+
+    /// An upper bound on the number of features of a message of the given size. A word has at least
+    /// minFeatureBytes - 1 characters and is followed by a separator, except at the very end of the message,
+    /// and gives at most one feature per n-gram order.
+    public int maxFeatures(int size)
+    {
+        return (size + 1) / minFeatureBytes * featuresPerWord;
+    }
+
+    /// Give the features of a message file to the sink. Returns false when the sink stopped early.
+    public boolean extract(File message, Tokenizer.Sink sink)
+    throws IOException
+    {
+        return extract(reader.load(message), sink);
+    }
+
+    /// Give the features of a message read from a stream to the sink. The stream is not closed.
+    public boolean extract(InputStream message, Tokenizer.Sink sink)
+    throws IOException
+    {
+        return extract(reader.load(message), sink);
+    }
+
+    /// Give the features of a message to the sink
+    public boolean extract(CharSequence message, Tokenizer.Sink sink)
+    {
+        return extract(message, sink, window == null ? sink : window.start(sink));
+    }
+
+    /// Give the features of the bytes between position and limit of a buffer to the sink
+    public boolean extract(ByteBuffer bytes, Tokenizer.Sink sink)
+    {
+        return extract(bytes, sink, window == null ? sink : window.start(sink));
+    }
+
+    /// Give the ids of the features of a message file to the sink
+    boolean extract(File message, IdSink sink)
+    throws IOException
+    {
+        return extract(reader.load(message), sink);
+    }
+
+    /// Give the ids of the features of a message read from a stream to the sink. The stream is not closed.
+    boolean extract(InputStream message, IdSink sink)
+    throws IOException
+    {
+        return extract(reader.load(message), sink);
+    }
+
+    /// Give the ids of the features of a message to the sink
+    boolean extract(CharSequence message, IdSink sink)
+    {
+        bind(sink);
+        return extract(message, headerIds, idWindow);
+    }
+
+    /// Give the ids of the features of the bytes between position and limit of a buffer to the sink
+    boolean extract(ByteBuffer bytes, IdSink sink)
+    {
+        bind(sink);
+        return extract(bytes, headerIds, idWindow);
+    }
+
+    /// See Tokenizer.followsPrevious()
+    public boolean followsPrevious()
+    {
+        return tokenizer.followsPrevious();
+    }
+
+    // Give the header tokens to one sink and the words (or n-grams) to the other
+    private boolean extract(CharSequence message, Tokenizer.Sink headers, Tokenizer.Sink words)
+    {
+        if (parser != null)
+            return extract(ByteBuffer.wrap(message.toString().getBytes(StandardCharsets.ISO_8859_1)), headers, words);
+        messageSize = message.length();
+        return tokenizer.tokenize(message, words);
+    }
+
+    private boolean extract(ByteBuffer bytes, Tokenizer.Sink headers, Tokenizer.Sink words)
+    {
+        messageSize = bytes.remaining();
+        if (parser == null)
+        {
+            tokenizer.reset();
+            return tokenizer.feed(bytes, words) && tokenizer.finish(words);
+        }
+        return parser.parse(bytes, tokenizer, headers, words);
+    }
+
+    private void bind(IdSink sink)
+    {
+        if (idWindow == null)
+            throw new IllegalStateException("extractor is not bound to a TermIndex");
+        idWindow.start(sink);
+        headerIds.sink = sink;
+    }
+
+    // Gives the ids of header tokens
+    private static final class HeaderIds implements Tokenizer.Sink
+    {
+        TermIndex terms;
+        final boolean add;
+        IdSink sink;
+
+        HeaderIds(TermIndex terms, boolean add)
+        {
+            this.terms = terms;
+            this.add = add;
+        }
+
+        public boolean word(char[] word, int length, int hash)
+        {
+            return sink.feature(add ? terms.add(word, length, hash) : terms.id(word, length, hash));
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package bayespam;
+
+import java.util.Arrays;
+
+/// An open addressing hash table that maps long keys to ids (the order in which they were added), like the
+/// Vocabulary does for words. Values are kept by the user in plain arrays indexed by the id, so the index
+/// holds no object per key and looking up a key that is already known does not allocate anything.
+/// The TermIndex keys its n-grams with it, packed into a long from the ids of their parts (see pack()).
+public final class LongIndex
+{
+    // The table is grown when it is more than this fraction full
+    private static final double MAX_LOAD = 0.6;
+
+    // Hash table: id + 1 of the key in every slot, 0 for an empty slot
+    private int[] slots;
+    private int mask;
+
+    // Per id: the key
+    private long[] keys;
+
+    private int size = 0;
+
+    public LongIndex()
+    {
+        this(1024);
+    }
+
+    public LongIndex(int expectedSize)
+    {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / MAX_LOAD)) - 1) << 1;
+        slots = new int[capacity];
+        mask = capacity - 1;
+        keys = new long[Math.max(16, expectedSize)];
+    }
+
+    /// The key of a pair of ids
+    public static long pack(int first, int second)
+    {
+        return ((long) first << 32) | (second & 0xffffffffL);
+    }
+
+    /// The first id of a packed pair
+    public static int first(long key)
+    {
+        return (int) (key >>> 32);
+    }
+
+    /// The second id of a packed pair
+    public static int second(long key)
+    {
+        return (int) key;
+    }
+
+    /// Number of keys in the index
+    public int size()
+    {
+        return size;
+    }
+
+    /// The key with the given id
+    public long key(int id)
+    {
+        return keys[id];
+    }
+
+    /// The id of a key, or -1 when it is not in the index
+    public int id(long key)
+    {
+        for (int slot = spread(key) & mask; ; slot = (slot + 1) & mask)
+        {
+            int id = slots[slot] - 1;
+            if (id < 0)
+                return -1;
+            if (keys[id] == key)
+                return id;
+        }
+    }
+
+    /// The id of a key, the key is added when it is not in the index yet
+    public int add(long key)
+    {
+        int slot = spread(key) & mask;
+        for (; ; slot = (slot + 1) & mask)
+        {
+            int id = slots[slot] - 1;
+            if (id < 0)
+                break;
+            if (keys[id] == key)
+                return id;
+        }
+        if (size == keys.length)
+            keys = Arrays.copyOf(keys, keys.length * 2);
+        int id = size++;
+        keys[id] = key;
+        slots[slot] = id + 1;
+        if (size > MAX_LOAD * slots.length)
+            rehash();
+        return id;
+    }
+
+    // Packed ids are small numbers in both halves, so mix all bits before the slot is taken from the low bits
+    private static int spread(long key)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void rehash()
+    {
+        slots = new int[slots.length * 2];
+        mask = slots.length - 1;
+        for (int id = 0; id < size; ++id)
+        {
+            int slot = spread(keys[id]) & mask;
+            while (slots[slot] != 0)
+                slot = (slot + 1) & mask;
+            slots[slot] = id + 1;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package bayespam;
+
+import java.util.Arrays;
+
+/// Counts words for training with lossy counting (Manku and Motwani), which prunes rare words while the
+/// messages are read instead of after all of them are counted.
+///
+/// The occurrences are split into buckets of bucketWidth occurrences. A word that is added in bucket b gets
+/// an error of b - 1: the number of times it may have occurred (and been pruned) before. At the end of every
+/// bucket all words whose count plus error is at most the number of the bucket are removed. The count of a
+/// word that is kept is too low by at most its error, and every word that occurs at least N / bucketWidth
+/// times in N occurrences is kept. Since most words (and almost all bigrams) occur only once or twice, the
+/// table stays close to the size of the pruned vocabulary. A lossy vocabulary is not thread safe.
+final class LossyVocabulary implements WordCounts
+{
+    private final int bucketWidth;
+
+    // The counted words and per id the error of their counts
+    private Vocabulary words = new Vocabulary();
+    private int[] error = new int[1024];
+
+    // Number of occurrences counted and the number of the current bucket (starting at 1)
+    private long occurrences = 0;
+    private int bucket = 1;
+
+    LossyVocabulary(int bucketWidth)
+    {
+        this.bucketWidth = bucketWidth;
+    }
+
+    public void addWord(char[] word, int length, int hash, Bayespam.MessageType type)
+    {
+        int size = words.size();
+        int id = words.add(word, length, hash);
+        if (words.size() > size)
+        {
+            /// A new n-gram may add its parts as well, they get the same error
+            if (words.size() > error.length)
+                error = Arrays.copyOf(error, Math.max(words.size(), error.length * 2));
+            Arrays.fill(error, size, words.size(), bucket - 1);
+        }
+        if (type == Bayespam.MessageType.NORMAL)
+            ++words.countRegular[id];
+        else
+            ++words.countSpam[id];
+
+        if (++occurrences % bucketWidth == 0)
+        {
+            prune(bucket);
+            ++bucket;
+        }
+    }
+
+    /// Add the counts of another lossy vocabulary to this one. A word that the other one does not have
+    /// may have been pruned there, so its error grows by the error a new word would have had there.
+    public void mergeCounts(WordCounts counts)
+    {
+        LossyVocabulary other = (LossyVocabulary) counts;
+        int size = words.size();
+        for (int id = 0; id < size; ++id)
+        {
+            if (other.words.id(words.word(id)) < 0)
+                error[id] += other.bucket - 1;
+        }
+        for (int otherId = 0; otherId < other.words.size(); ++otherId)
+        {
+            String word = other.words.word(otherId);
+            int before = words.size();
+            int id = words.add(word);
+            if (words.size() > before)
+            {
+                if (words.size() > error.length)
+                    error = Arrays.copyOf(error, Math.max(words.size(), error.length * 2));
+                Arrays.fill(error, before, words.size(), bucket - 1);
+            }
+            words.countRegular[id] += other.words.countRegular[otherId];
+            words.countSpam[id] += other.words.countSpam[otherId];
+            error[id] += other.error[otherId];
+        }
+        occurrences += other.occurrences;
+        bucket = (int) (occurrences / bucketWidth) + 1;
+        prune(bucket - 1);
+    }
+
+    /// The counted words that occur at least minCount times, with their (lower bound) counts
+    public Vocabulary toVocabulary(int minCount)
+    {
+        return words.prune(minCount);
+    }
+
+    // Remove the words whose count plus error is at most the given bucket number
+    private void prune(int upTo)
+    {
+        Vocabulary kept = new Vocabulary(Math.max(16, words.size() / 2));
+        int[] keptError = new int[Math.max(1024, error.length / 2)];
+        for (int id = 0; id < words.size(); ++id)
+        {
+            if (words.countRegular[id] + words.countSpam[id] + error[id] > upTo)
+            {
+                int keptId = kept.add(words.word(id));
+                if (keptId >= keptError.length)
+                    keptError = Arrays.copyOf(keptError, Math.max(keptId + 1, keptError.length * 2));
+                kept.countRegular[keptId] = words.countRegular[id];
+                kept.countSpam[keptId] = words.countSpam[id];
+                keptError[keptId] = error[id];
+            }
+        }
+        words = kept;
+        error = keptError;
+    }
+}
@@ -0,0 +1,314 @@
+package bayespam;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/// Splits a raw (RFC 822) mail message into its headers and its body before it is tokenized.
+///
+/// Header lines do not give plain words but header tokens: the lowercase field name, a colon and a token of
+/// the value, e.g. "subject:weight" or "from:att.com" (for addresses only the domain is kept). Tokens of the
+/// value consist of letters, digits and . _ - @ and must be at least MIN_HEADER_TOKEN characters long.
+///
+/// The body is given to the tokenizer line by line, but the parser skips what is not worth tokenizing:
+/// the body of a message or a MIME part with Content-Transfer-Encoding base64, lines that look like base64
+/// data and, to bound the cost of a message, everything after the first maxBodyBytes bytes of the body.
+/// The headers of MIME parts are skipped as well. A parser is not thread safe.
+final class MessageParser
+{
+    // Default number of bytes of the body that are tokenized
+    static final int MAX_BODY_BYTES = 1 << 16;
+
+    // Header tokens shorter than this are skipped
+    static final int MIN_HEADER_TOKEN = 3;
+
+    // Lines at least this long that only have base64 characters are taken for base64 data
+    static final int MIN_BASE64_LINE = 60;
+
+    private final int maxBodyBytes;
+
+    // The header token that is being built: field name, ':' and the value token
+    private char[] token = new char[128];
+    private int nameLength;
+    private int length;
+
+    // State of the headers of the message or the MIME part that is being parsed
+    private boolean contentType;
+    private boolean transferEncoding;
+    private boolean base64;
+
+    // Boundaries of the MIME parts seen so far, without the leading "--"
+    private final List<byte[]> boundaries = new ArrayList<>();
+
+    MessageParser(int maxBodyBytes)
+    {
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    /// Give the header tokens of the message between position and limit of the buffer to headerSink and
+    /// the words of its body to bodySink. Returns false when a sink stopped early.
+    boolean parse(ByteBuffer message, Tokenizer tokenizer, Tokenizer.Sink headerSink, Tokenizer.Sink bodySink)
+    {
+        boundaries.clear();
+        int end = message.limit();
+        int pos = message.position();
+
+        /// Headers, up to the first empty line
+        base64 = false;
+        nameLength = -1;
+        while (pos < end)
+        {
+            int eol = endOfLine(message, pos, end);
+            int next = eol < end ? eol + 1 : end;
+            int lineEnd = trimCr(message, pos, eol);
+            if (lineEnd == pos)
+            {
+                pos = next;
+                break;
+            }
+            if (!header(message, pos, lineEnd, headerSink, true))
+                return false;
+            pos = next;
+        }
+
+        /// Body
+        tokenizer.reset();
+        boolean inPartHeaders = false;
+        boolean skipPart = base64;
+        int bodyEnd = (int) Math.min(end, (long) pos + maxBodyBytes);
+        while (pos < bodyEnd)
+        {
+            int eol = endOfLine(message, pos, bodyEnd);
+            int next = eol < bodyEnd ? eol + 1 : bodyEnd;
+            int lineEnd = trimCr(message, pos, eol);
+
+            if (isBoundary(message, pos, lineEnd))
+            {
+                /// A new MIME part starts with its own headers
+                inPartHeaders = true;
+                base64 = false;
+                nameLength = -1;
+            }
+            else if (inPartHeaders)
+            {
+                if (lineEnd == pos)
+                {
+                    inPartHeaders = false;
+                    skipPart = base64;
+                }
+                else
+                    header(message, pos, lineEnd, headerSink, false);
+            }
+            else if (!skipPart && !isBase64(message, pos, lineEnd))
+            {
+                if (!tokenizer.feed(message, pos, next, bodySink))
+                    return false;
+            }
+            pos = next;
+        }
+        return tokenizer.finish(bodySink);
+    }
+
+    // Handle a header line: remember the field name (or keep it for a continuation line), look for the MIME
+    // parameters and, when emit is set, give the tokens of the value to the sink
+    private boolean header(ByteBuffer message, int from, int to, Tokenizer.Sink sink, boolean emit)
+    {
+        int pos = from;
+        byte first = message.get(from);
+        if (first != ' ' && first != '\t')
+        {
+            /// A new field, the name runs up to the colon and has no white space
+            int colon = -1;
+            for (int i = from; i < to; ++i)
+            {
+                byte b = message.get(i);
+                if (b == ':')
+                {
+                    colon = i;
+                    break;
+                }
+                if (b <= ' ')
+                    break;
+            }
+            if (colon <= from)
+            {
+                /// Not a header, like the "From sender date" line of an mbox file
+                nameLength = -1;
+                return true;
+            }
+            length = 0;
+            for (int i = from; i < colon; ++i)
+                append(lower(message.get(i)));
+            append(':');
+            nameLength = length;
+            contentType = is("content-type:");
+            transferEncoding = is("content-transfer-encoding:");
+            pos = colon + 1;
+        }
+        if (nameLength < 0)
+            return true;
+
+        if (contentType)
+            findBoundary(message, pos, to);
+        if (transferEncoding && contains(message, pos, to, "base64"))
+            base64 = true;
+        if (!emit)
+            return true;
+
+        /// The tokens of the value
+        length = nameLength;
+        for (int i = pos; i <= to; ++i)
+        {
+            int c = i < to ? lower(message.get(i)) : ' ';
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '.' || c == '_' || c == '-' || c == '@')
+                append(c);
+            else if (length > nameLength)
+            {
+                if (!emitToken(sink))
+                    return false;
+                length = nameLength;
+            }
+        }
+        return true;
+    }
+
+    // Give the value token in the buffer to the sink. Only the domain of an address is kept.
+    private boolean emitToken(Tokenizer.Sink sink)
+    {
+        int start = nameLength;
+        for (int i = nameLength; i < length; ++i)
+        {
+            if (token[i] == '@')
+                start = i + 1;
+        }
+        while (length > start && (token[length - 1] == '.' || token[length - 1] == '-'))
+            --length;
+        if (start > nameLength)
+        {
+            System.arraycopy(token, start, token, nameLength, length - start);
+            length -= start - nameLength;
+        }
+        if (length - nameLength < MIN_HEADER_TOKEN)
+            return true;
+
+        int hash = 0;
+        for (int i = 0; i < length; ++i)
+            hash = 31 * hash + token[i];
+        return sink.word(token, length, hash);
+    }
+
+    // Add the boundary parameter of a Content-Type value, if it is on this line
+    private void findBoundary(ByteBuffer message, int from, int to)
+    {
+        int at = indexOf(message, from, to, "boundary=");
+        if (at < 0)
+            return;
+        int start = at + "boundary=".length();
+        int stop;
+        if (start < to && message.get(start) == '"')
+        {
+            ++start;
+            stop = start;
+            while (stop < to && message.get(stop) != '"')
+                ++stop;
+        }
+        else
+        {
+            stop = start;
+            while (stop < to && message.get(stop) != ';' && message.get(stop) > ' ')
+                ++stop;
+        }
+        if (stop > start)
+        {
+            byte[] boundary = new byte[stop - start];
+            for (int i = start; i < stop; ++i)
+                boundary[i - start] = message.get(i);
+            boundaries.add(boundary);
+        }
+    }
+
+    // Whether a line is "--" followed by one of the known boundaries
+    private boolean isBoundary(ByteBuffer message, int from, int to)
+    {
+        if (to - from < 3 || message.get(from) != '-' || message.get(from + 1) != '-')
+            return false;
+        for (byte[] boundary : boundaries)
+        {
+            if (to - from - 2 < boundary.length)
+                continue;
+            int i = 0;
+            while (i < boundary.length && message.get(from + 2 + i) == boundary[i])
+                ++i;
+            if (i == boundary.length)
+                return true;
+        }
+        return false;
+    }
+
+    // Whether a line is long and only has base64 characters
+    private static boolean isBase64(ByteBuffer message, int from, int to)
+    {
+        if (to - from < MIN_BASE64_LINE)
+            return false;
+        for (int i = from; i < to; ++i)
+        {
+            int c = message.get(i);
+            if (!((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '+' || c == '/' || c == '='))
+                return false;
+        }
+        return true;
+    }
+
+    // Whether the field name in the token buffer equals a lowercase name (with colon)
+    private boolean is(String name)
+    {
+        return Vocabulary.equals(name, token, length);
+    }
+
+    private static boolean contains(ByteBuffer message, int from, int to, String lowercase)
+    {
+        return indexOf(message, from, to, lowercase) >= 0;
+    }
+
+    // Index of a lowercase text in a range of the message, ignoring case, or -1
+    private static int indexOf(ByteBuffer message, int from, int to, String lowercase)
+    {
+        for (int i = from; i + lowercase.length() <= to; ++i)
+        {
+            int j = 0;
+            while (j < lowercase.length() && lower(message.get(i + j)) == lowercase.charAt(j))
+                ++j;
+            if (j == lowercase.length())
+                return i;
+        }
+        return -1;
+    }
+
+    private static int endOfLine(ByteBuffer message, int from, int end)
+    {
+        int i = from;
+        while (i < end && message.get(i) != '\n')
+            ++i;
+        return i;
+    }
+
+    // The end of a line without its carriage return
+    private static int trimCr(ByteBuffer message, int from, int eol)
+    {
+        return eol > from && message.get(eol - 1) == '\r' ? eol - 1 : eol;
+    }
+
+    private static int lower(byte b)
+    {
+        int c = b & 0xff;
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    private void append(int c)
+    {
+        if (length == token.length)
+            token = Arrays.copyOf(token, length * 2);
+        token[length++] = (char) c;
+    }
+}
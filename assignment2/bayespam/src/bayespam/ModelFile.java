@@ -0,0 +1,217 @@
+package bayespam;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/// A trained model stored in a binary file, so a classifier does not have to be trained again on every start.
+///
+/// The file is big endian and laid out as:
+///     int    magic ("BSPM") and int version
+///     int    word size threshold the vocabulary was built with
+///     int    FeatureExtractor options the vocabulary was built with (since version 2)
+///     double number of regular and number of spam training messages (the priors)
+///     double small value used for zero probabilities (the smoothing constant)
+///     int    number of words
+///     per word: int length, the UTF-8 bytes of the word
+///     zero bytes up to a multiple of 8 bytes from the start of the file
+///     per word: double log likelihood ratio
+///     per word: int regular count, int spam count
+/// Before version 3 there was no padding and the table per word was int regular count, int spam count,
+/// double log likelihood ratio.
+///
+/// The loader memory maps the file and keeps the mapping: the ScoringModel reads its log likelihood ratios
+/// straight from the mapped table, so the JVMs on one host that load the same file share those pages in
+/// the page cache. Only the words are decoded onto the heap, into the TermIndex of the model. The counts
+/// are only decoded when the Vocabulary is asked for (see OnlineModel). Files of older versions, and files
+/// whose word ids differ from the ids of the index, are still copied onto the heap.
+///
+/// A mapped file must not be truncated while it is in use, so save() writes a new file next to the old one
+/// and renames it over it; a process that has the old file loaded keeps using its pages.
+final class ModelFile
+{
+    static final int MAGIC = 0x4253504d;
+    static final int VERSION = 3;
+
+    final ScoringModel model;
+    final double nMessagesRegular;
+    final double nMessagesSpam;
+    final double smallVal;
+
+    // The vocabulary, or null while the counts of a loaded file have not been decoded yet
+    private Vocabulary vocab;
+
+    // Of a loaded file: the mapped table of the counts
+    private ByteBuffer counts;
+
+    ModelFile(Vocabulary vocab, ScoringModel model, double nMessagesRegular, double nMessagesSpam, double smallVal)
+    {
+        this.vocab = vocab;
+        this.model = model;
+        this.nMessagesRegular = nMessagesRegular;
+        this.nMessagesSpam = nMessagesSpam;
+        this.smallVal = smallVal;
+    }
+
+    /// The vocabulary with the counts of the model, with its own copy of the term index
+    synchronized Vocabulary vocab()
+    {
+        if (vocab == null)
+        {
+            TermIndex terms = new TermIndex(model.size());
+            for (int id = 0; id < model.size(); ++id)
+                terms.add(model.word(id));
+            vocab = new Vocabulary(terms);
+            for (int id = 0; id < model.size(); ++id)
+            {
+                vocab.countRegular[id] = counts.getInt(8 * id);
+                vocab.countSpam[id] = counts.getInt(8 * id + 4);
+            }
+            counts = null;
+        }
+        return vocab;
+    }
+
+    /// Write the model to a file. The vocabulary and the scoring model must have the same word ids,
+    /// which is the case for a model frozen from that vocabulary.
+    void save(File file)
+    throws IOException
+    {
+        Vocabulary vocab = vocab();
+        if (vocab.size() != model.size())
+            throw new IllegalStateException("vocabulary and model differ in size");
+
+        File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(model.wordSizeThreshold());
+            out.writeInt(model.features());
+            out.writeDouble(nMessagesRegular);
+            out.writeDouble(nMessagesSpam);
+            out.writeDouble(smallVal);
+            out.writeInt(model.size());
+            long position = 44;
+            for (int id = 0; id < model.size(); ++id)
+            {
+                byte[] word = model.word(id).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(word.length);
+                out.write(word);
+                position += 4 + word.length;
+            }
+            for (; position % 8 != 0; ++position)
+                out.writeByte(0);
+            for (int id = 0; id < model.size(); ++id)
+                out.writeDouble(model.llr(id));
+            for (int id = 0; id < model.size(); ++id)
+            {
+                out.writeInt(vocab.countRegular[id]);
+                out.writeInt(vocab.countSpam[id]);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /// Read a model file written by save()
+    static ModelFile load(File file)
+    throws IOException
+    {
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            /// The mapping stays valid after the channel is closed, for as long as the buffer is reachable
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return decode(buffer, file);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static ModelFile decode(ByteBuffer buffer, File file)
+    throws IOException
+    {
+        if (buffer.remaining() < 8 || buffer.getInt() != MAGIC)
+            throw new IOException("- Error: " + file + " is not a model file");
+        int version = buffer.getInt();
+        if (version < 1 || version > VERSION)
+            throw new IOException("- Error: " + file + " has model version " + version + ", expected " + VERSION);
+
+        int wordSizeThreshold = buffer.getInt();
+        int features = version >= 2 ? buffer.getInt() : 0;
+        double nMessagesRegular = buffer.getDouble();
+        double nMessagesSpam = buffer.getDouble();
+        double smallVal = buffer.getDouble();
+        double nMessagesTotal = nMessagesRegular + nMessagesSpam;
+        double priorLogOdds = Math.log(nMessagesSpam / nMessagesTotal) - Math.log(nMessagesRegular / nMessagesTotal);
+
+        /// A file written before the parts of n-grams were kept in the vocabulary has n-grams whose words are
+        /// not in it, those get other ids here than in the file
+        int size = buffer.getInt();
+        TermIndex terms = new TermIndex(size);
+        int[] ids = new int[size];
+        boolean sameIds = true;
+        byte[] bytes = new byte[64];
+        for (int id = 0; id < size; ++id)
+        {
+            int length = buffer.getInt();
+            if (length > bytes.length)
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            buffer.get(bytes, 0, length);
+            ids[id] = terms.add(new String(bytes, 0, length, StandardCharsets.UTF_8));
+            sameIds &= ids[id] == id;
+        }
+
+        if (version >= 3)
+        {
+            buffer.position((buffer.position() + 7) & ~7);
+            ByteBuffer table = buffer.slice();
+            table.limit(8 * size);
+            ByteBuffer counts = buffer.duplicate();
+            counts.position(buffer.position() + 8 * size);
+            counts = counts.slice();
+            if (sameIds)
+            {
+                DoubleBuffer llr = table.asDoubleBuffer();
+                ScoringModel model = new ScoringModel(terms, llr, priorLogOdds, features, wordSizeThreshold);
+                ModelFile modelFile = new ModelFile(null, model, nMessagesRegular, nMessagesSpam, smallVal);
+                modelFile.counts = counts;
+                return modelFile;
+            }
+            Vocabulary vocab = new Vocabulary(terms.copy());
+            double[] llr = new double[terms.size()];
+            for (int id = 0; id < size; ++id)
+            {
+                vocab.countRegular[ids[id]] += counts.getInt(8 * id);
+                vocab.countSpam[ids[id]] += counts.getInt(8 * id + 4);
+                llr[ids[id]] = table.getDouble(8 * id);
+            }
+            return new ModelFile(vocab, new ScoringModel(terms, llr, priorLogOdds, features, wordSizeThreshold),
+                                 nMessagesRegular, nMessagesSpam, smallVal);
+        }
+
+        Vocabulary vocab = new Vocabulary(terms.copy());
+        double[] llr = new double[terms.size()];
+        for (int id = 0; id < size; ++id)
+        {
+            vocab.countRegular[ids[id]] += buffer.getInt();
+            vocab.countSpam[ids[id]] += buffer.getInt();
+            llr[ids[id]] = buffer.getDouble();
+        }
+        return new ModelFile(vocab, new ScoringModel(terms, llr, priorLogOdds, features, wordSizeThreshold),
+                             nMessagesRegular, nMessagesSpam, smallVal);
+    }
+}
@@ -0,0 +1,190 @@
+package bayespam;
+
+import java.util.Arrays;
+
+/// Turns the words of a tokenizer into n-gram features of one or more orders (1 to FeatureExtractor.MAX_ORDER)
+/// in a single pass: the last words are kept in a small window and for every new word the n-grams that end
+/// with it are given to the next sink. An n-gram is its words joined by single spaces, e.g. "money transfer";
+/// words never contain spaces, so different n-grams never give the same text. Like a bigram, an n-gram is only
+/// made from words that directly follow each other on a line (see Tokenizer.followsPrevious()).
+///
+/// The hash code of an n-gram is rolled from the hash codes of its words, using
+///
+///     hash(s + " " + w) = hash(s) * 31^(length(w) + 1) + ' ' * 31^length(w) + hash(w)
+///
+/// so it is equal to the hash code of the n-gram as a String without hashing its characters again.
+///
+/// A window that is bound to a TermIndex can give ids instead of text (see start(FeatureExtractor.IdSink)).
+/// It keeps per order the id of the n-gram that ends with the last word, and the id of the n-gram of order n
+/// that ends with a new word w is looked up as the pair (id of the (n-1)-gram before w, id of w), packed into
+/// a long (see TermIndex.gram()). No text is joined and no characters are hashed for an n-gram; -1 is given
+/// for an n-gram that is not in the index. When the window adds to the index, the n-grams of the orders
+/// that are not features are added as well, as they are the parts of the longer ones.
+/// A window is not thread safe.
+final class NGramWindow implements Tokenizer.Sink
+{
+    private final Tokenizer tokenizer;
+    private Tokenizer.Sink sink;
+
+    // The index the ids are taken from, whether missing n-grams are added to it, and the sink for the ids
+    // (null when text is given)
+    private TermIndex terms;
+    private final boolean add;
+    private FeatureExtractor.IdSink ids;
+
+    // Per order n the id of the n-gram of the last n words, -1 when it is not in the index
+    private final int[] gramIds;
+
+    // Bit n is set when n-grams of order n are made
+    private final int orders;
+    private final int maxOrder;
+
+    // The last maxOrder words, the newest at index (newest % maxOrder); count is the number of adjacent words
+    private final char[][] words;
+    private final int[] lengths;
+    private final int[] hashes;
+    private int newest = -1;
+    private int count = 0;
+
+    // The n-gram that is being built
+    private char[] gram = new char[128];
+
+    // Powers of 31 (with int overflow, like String.hashCode())
+    private int[] pow31 = { 1 };
+
+    NGramWindow(int orders, Tokenizer tokenizer)
+    {
+        this(orders, tokenizer, null, false);
+    }
+
+    /// A window that can give the ids of the n-grams in an index, and adds the n-grams that are not in it
+    /// when add is set
+    NGramWindow(int orders, Tokenizer tokenizer, TermIndex terms, boolean add)
+    {
+        this.orders = orders;
+        this.tokenizer = tokenizer;
+        this.terms = terms;
+        this.add = add;
+        maxOrder = 31 - Integer.numberOfLeadingZeros(orders);
+        words = new char[maxOrder][];
+        for (int i = 0; i < maxOrder; ++i)
+            words[i] = new char[32];
+        lengths = new int[maxOrder];
+        hashes = new int[maxOrder];
+        gramIds = new int[maxOrder + 1];
+    }
+
+    /// Take the ids from another index from now on
+    void bind(TermIndex terms)
+    {
+        this.terms = terms;
+    }
+
+    /// Start on a new message, the n-grams are given to the sink
+    NGramWindow start(Tokenizer.Sink sink)
+    {
+        this.sink = sink;
+        ids = null;
+        count = 0;
+        return this;
+    }
+
+    /// Start on a new message, the ids of the n-grams are given to the sink
+    NGramWindow start(FeatureExtractor.IdSink ids)
+    {
+        if (terms == null)
+            throw new IllegalStateException("window is not bound to a TermIndex");
+        this.ids = ids;
+        sink = null;
+        count = 0;
+        return this;
+    }
+
+    public boolean word(char[] word, int length, int hash)
+    {
+        if (!tokenizer.followsPrevious())
+            count = 0;
+        if (ids != null)
+            return wordId(add ? terms.add(word, length, hash) : terms.id(word, length, hash));
+
+        /// Keep the word in the window
+        newest = (newest + 1) % maxOrder;
+        if (words[newest].length < length)
+            words[newest] = Arrays.copyOf(word, Math.max(length, words[newest].length * 2));
+        else
+            System.arraycopy(word, 0, words[newest], 0, length);
+        lengths[newest] = length;
+        hashes[newest] = hash;
+        count = Math.min(count + 1, maxOrder);
+
+        if ((orders & 2) != 0 && !sink.word(word, length, hash))
+            return false;
+        for (int n = 2; n <= count; ++n)
+        {
+            if ((orders & (1 << n)) != 0 && !emit(n))
+                return false;
+        }
+        return true;
+    }
+
+    // Give the ids of the n-grams that end with a word with the given id to the sink
+    private boolean wordId(int id)
+    {
+        count = Math.min(count + 1, maxOrder);
+        for (int n = count; n >= 2; --n)
+        {
+            int prefix = gramIds[n - 1];
+            if (prefix < 0 || id < 0)
+                gramIds[n] = -1;
+            else
+            {
+                long key = LongIndex.pack(prefix, id);
+                gramIds[n] = add ? terms.addGram(key) : terms.gram(key);
+            }
+        }
+        gramIds[1] = id;
+
+        for (int n = 1; n <= count; ++n)
+        {
+            if ((orders & (1 << n)) != 0 && !ids.feature(gramIds[n]))
+                return false;
+        }
+        return true;
+    }
+
+    // Give the n-gram of the last n words to the sink
+    private boolean emit(int n)
+    {
+        int gramLength = 0;
+        int gramHash = 0;
+        for (int k = n - 1; k >= 0; --k)
+        {
+            int i = (newest - k + maxOrder) % maxOrder;
+            int length = lengths[i];
+            if (gramLength + length + 1 > gram.length)
+                gram = Arrays.copyOf(gram, (gramLength + length + 1) * 2);
+            if (k < n - 1)
+            {
+                gram[gramLength++] = ' ';
+                gramHash = gramHash * pow31(length + 1) + ' ' * pow31(length) + hashes[i];
+            }
+            else
+                gramHash = hashes[i];
+            System.arraycopy(words[i], 0, gram, gramLength, length);
+            gramLength += length;
+        }
+        return sink.word(gram, gramLength, gramHash);
+    }
+
+    private int pow31(int exponent)
+    {
+        if (exponent >= pow31.length)
+        {
+            int old = pow31.length;
+            pow31 = Arrays.copyOf(pow31, Math.max(exponent + 1, old * 2));
+            for (int i = old; i < pow31.length; ++i)
+                pow31[i] = pow31[i - 1] * 31;
+        }
+        return pow31[exponent];
+    }
+}
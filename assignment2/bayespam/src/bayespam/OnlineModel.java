@@ -0,0 +1,235 @@
+package bayespam;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/// A model that keeps learning while it is used. Single labelled messages can be added with update()
+/// and taken out again with unlearn() (for mail that was labelled wrong), in time linear in the number
+/// of words of the message.
+///
+/// With r and s the regular and spam count of a word, R and S the total number of regular and spam
+/// words, N = R + S and nR, nS the number of regular and spam messages, the log likelihood ratio of the
+/// ScoringModel works out to
+///
+///     both counts > 0:  2 log s - 2 log r  +  log R - log S  +  log nR - log nS
+///     only s > 0:       2 log s            +  log N - log S  +  log nR - log nS
+///     only r > 0:                - 2 log r +  log R - log N  +  log nR - log nS
+///
+/// The first part only depends on the counts of the word and is stored per word; the second part only
+/// depends on the totals and is one of three offsets shared by all words. A message changes the first
+/// part of its own words and the offsets, so there is no need to touch the rest of the vocabulary.
+///
+/// Classification takes a read lock and can run in parallel, updates take the write lock.
+public final class OnlineModel
+{
+    // Index of the offsets per kind of word (bit 0: spam count > 0, bit 1: regular count > 0),
+    // the prior log odds are stored after them
+    private static final int SPAM_ONLY = 1;
+    private static final int REGULAR_ONLY = 2;
+    private static final int BOTH = 3;
+    private static final int PRIOR = 4;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Vocabulary vocab;
+    private final int features;
+    private final int wordSizeThreshold;
+    private double[] termPart;
+    private byte[] kind;
+
+    private long nWordsRegular;
+    private long nWordsSpam;
+    private long nMessagesRegular;
+    private long nMessagesSpam;
+
+    // Offsets per kind of word and the prior log odds
+    private double[] offsets = new double[5];
+
+    // Feature extractor and running score of every thread that classifies
+    private final ThreadLocal<Scorer> scorers = new ThreadLocal<Scorer>()
+    {
+        protected Scorer initialValue()
+        {
+            return new Scorer();
+        }
+    };
+
+    // Feature extractor and counting state for updates, only used under the write lock
+    private final Updater updater;
+
+    /// Start from a trained vocabulary and the number of messages it was trained on
+    OnlineModel(Vocabulary vocab, long nMessagesRegular, long nMessagesSpam, int features, int wordSizeThreshold)
+    {
+        this.vocab = vocab;
+        this.features = features;
+        this.wordSizeThreshold = wordSizeThreshold;
+        updater = new Updater();
+        this.nMessagesRegular = nMessagesRegular;
+        this.nMessagesSpam = nMessagesSpam;
+        termPart = new double[Math.max(16, vocab.size())];
+        kind = new byte[termPart.length];
+        for (int id = 0; id < vocab.size(); ++id)
+        {
+            nWordsRegular += vocab.countRegular[id];
+            nWordsSpam += vocab.countSpam[id];
+            refresh(id);
+        }
+        refreshOffsets();
+    }
+
+    /// Start from a model file written by ModelFile.save()
+    public static OnlineModel load(File modelFile)
+    throws IOException
+    {
+        ModelFile file = ModelFile.load(modelFile);
+        return new OnlineModel(file.vocab(), (long) file.nMessagesRegular, (long) file.nMessagesSpam,
+                               file.model.features(), file.model.wordSizeThreshold());
+    }
+
+    /// Learn a labelled message
+    public void update(CharSequence message, Bayespam.MessageType type)
+    {
+        apply(message, type, 1);
+    }
+
+    /// Take back a message that was learned with the given label before
+    public void unlearn(CharSequence message, Bayespam.MessageType type)
+    {
+        apply(message, type, -1);
+    }
+
+    /// The spam score (log odds of spam against regular) of a message, positive means spam
+    public double classify(CharSequence message)
+    {
+        lock.readLock().lock();
+        try
+        {
+            Scorer scorer = scorers.get();
+            scorer.logOdds = offsets[PRIOR];
+            scorer.extractor.extract(message, scorer);
+            return scorer.logOdds;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /// Freeze the current state into a ScoringModel
+    public ScoringModel freeze()
+    {
+        lock.readLock().lock();
+        try
+        {
+            double[] llr = new double[vocab.size()];
+            for (int id = 0; id < vocab.size(); ++id)
+                llr[id] = kind[id] == 0 ? 0 : termPart[id] + offsets[kind[id]];
+            return new ScoringModel(vocab.terms().copy(), llr, offsets[PRIOR], features, wordSizeThreshold);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void apply(CharSequence message, Bayespam.MessageType type, int delta)
+    {
+        boolean regular = type == Bayespam.MessageType.NORMAL;
+        lock.writeLock().lock();
+        try
+        {
+            updater.regular = regular;
+            updater.delta = delta;
+            (delta > 0 ? updater.adding : updater.finding).extract(message, updater);
+
+            if (regular)
+                nMessagesRegular = Math.max(0, nMessagesRegular + delta);
+            else
+                nMessagesSpam = Math.max(0, nMessagesSpam + delta);
+            refreshOffsets();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Change the count of the word with the given id, -1 for a word that is not in the vocabulary
+    private void count(int id, boolean regular, int delta)
+    {
+        if (id < 0)
+            return;
+        vocab.reserve(id);
+        int[] counts = regular ? vocab.countRegular : vocab.countSpam;
+        if (counts[id] + delta < 0)
+            return;
+        counts[id] += delta;
+        if (regular)
+            nWordsRegular += delta;
+        else
+            nWordsSpam += delta;
+        refresh(id);
+    }
+
+    // Recompute the part of the log likelihood ratio that depends on the counts of one word
+    private void refresh(int id)
+    {
+        if (id >= termPart.length)
+        {
+            termPart = Arrays.copyOf(termPart, Math.max(id + 1, termPart.length * 2));
+            kind = Arrays.copyOf(kind, termPart.length);
+        }
+        int regular = vocab.countRegular[id];
+        int spam = vocab.countSpam[id];
+        termPart[id] = (spam > 0 ? 2 * Math.log(spam) : 0) - (regular > 0 ? 2 * Math.log(regular) : 0);
+        kind[id] = (byte) ((spam > 0 ? SPAM_ONLY : 0) | (regular > 0 ? REGULAR_ONLY : 0));
+    }
+
+    // Recompute the offsets that depend on the totals
+    private void refreshOffsets()
+    {
+        double logR = Math.log(nWordsRegular);
+        double logS = Math.log(nWordsSpam);
+        double logN = Math.log(nWordsRegular + nWordsSpam);
+        double priorLogOdds = Math.log(nMessagesSpam) - Math.log(nMessagesRegular);
+
+        double[] next = new double[5];
+        next[BOTH] = logR - logS - priorLogOdds;
+        next[SPAM_ONLY] = logN - logS - priorLogOdds;
+        next[REGULAR_ONLY] = logR - logN - priorLogOdds;
+        next[PRIOR] = priorLogOdds;
+        offsets = next;
+    }
+
+    // Adds the log likelihood ratio of every word to the log odds of the message
+    private final class Scorer implements FeatureExtractor.IdSink
+    {
+        final FeatureExtractor extractor = new FeatureExtractor(features, wordSizeThreshold, vocab.terms(), false);
+        double logOdds;
+
+        public boolean feature(int id)
+        {
+            /// Words that were added as the parts of an n-gram may not have been counted yet
+            if (id >= 0 && id < kind.length && kind[id] != 0)
+                logOdds += termPart[id] + offsets[kind[id]];
+            return true;
+        }
+    }
+
+    // Changes the counts of every word of a message; words are only added to the vocabulary when learning
+    private final class Updater implements FeatureExtractor.IdSink
+    {
+        final FeatureExtractor adding = new FeatureExtractor(features, wordSizeThreshold, vocab.terms(), true);
+        final FeatureExtractor finding = new FeatureExtractor(features, wordSizeThreshold, vocab.terms(), false);
+        boolean regular;
+        int delta;
+
+        public boolean feature(int id)
+        {
+            count(id, regular, delta);
+            return true;
+        }
+    }
+}
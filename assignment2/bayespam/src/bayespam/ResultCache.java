@@ -0,0 +1,266 @@
+package bayespam;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/// Remembers the scores of recently classified messages, so the copies of a message that is sent many times
+/// (as spam campaigns do) are answered without tokenizing and scoring them again. The key of a message is a
+/// 64 bit hash of its normalized content, which costs one pass over the bytes without creating any words.
+///
+/// Without HEADERS the normalization keeps exactly what the Tokenizer looks at: letters are made lowercase,
+/// a run of white space becomes one space or, when it holds a line break, one line break (white space at the
+/// start and the end is dropped) and a run of other characters becomes one marker. Messages with the same
+/// normalized content have the same words and n-grams, so e.g. copies that only differ in numbers or line
+/// endings share an entry. With HEADERS the header tokens and MIME parsing depend on the exact bytes, so the
+/// raw message is hashed. With an early stopping classifier the cached score is the one of the first copy.
+///
+/// The cache is split in SEGMENTS segments by the hash, each an LRU list behind its own lock, so threads
+/// that classify different messages rarely wait for each other. Every entry holds the version of the model
+/// it was scored with: after use() switches to another model the entries of the old one are dropped and are
+/// never answered again, not even when a classification with the old model finishes after the switch.
+public final class ResultCache
+{
+    /// Number of segments, each with its own lock
+    static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final ClassifierMetrics metrics;
+    private volatile SpamClassifier classifier;
+
+    /// A cache of at most capacity scores in front of a classifier
+    public ResultCache(SpamClassifier classifier, int capacity)
+    {
+        this(classifier, capacity, null);
+    }
+
+    /// A cache that also counts its hits and misses in the given metrics
+    public ResultCache(SpamClassifier classifier, int capacity, ClassifierMetrics metrics)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException("cache capacity must be at least 1: " + capacity);
+        this.classifier = classifier;
+        this.metrics = metrics;
+        for (int s = 0; s < SEGMENTS; ++s)
+            segments[s] = new Segment((capacity + SEGMENTS - 1) / SEGMENTS);
+    }
+
+    /// The spam score of a message given as the bytes between position and limit of a buffer
+    public double classify(ByteBuffer message)
+    {
+        SpamClassifier current = classifier;
+        Hash hash = new Hash(current.model());
+        if (message.hasArray())
+        {
+            byte[] bytes = message.array();
+            int end = message.arrayOffset() + message.limit();
+            for (int i = message.arrayOffset() + message.position(); i < end; ++i)
+                hash.add(bytes[i] & 0xff);
+        }
+        else
+        {
+            for (int i = message.position(); i < message.limit(); ++i)
+                hash.add(message.get(i) & 0xff);
+        }
+        long key = hash.value();
+        Result result = find(key, current);
+        if (result != null)
+            return result.score;
+        double score = current.classify(message);
+        keep(key, current, score);
+        return score;
+    }
+
+    /// The spam score of a message
+    public double classify(CharSequence message)
+    {
+        SpamClassifier current = classifier;
+        Hash hash = new Hash(current.model());
+        for (int i = 0; i < message.length(); ++i)
+            hash.add(message.charAt(i));
+        long key = hash.value();
+        Result result = find(key, current);
+        if (result != null)
+            return result.score;
+        double score = current.classify(message);
+        keep(key, current, score);
+        return score;
+    }
+
+    /// Classify with another classifier from now on, e.g. one with a newly trained model. All scores are
+    /// forgotten, also when the model is the same, since the classifier may stop early where the old one did not.
+    public void use(SpamClassifier classifier)
+    {
+        this.classifier = classifier;
+        clear();
+    }
+
+    /// The classifier the messages that are not in the cache are scored with
+    public SpamClassifier classifier()
+    {
+        return classifier;
+    }
+
+    /// Forget all scores
+    public void clear()
+    {
+        for (Segment segment : segments)
+            segment.clearAll();
+    }
+
+    /// Number of scores in the cache
+    public int size()
+    {
+        int size = 0;
+        for (Segment segment : segments)
+            size += segment.count();
+        return size;
+    }
+
+    // The score of the message with the given key if it was scored with the model of the classifier, or null
+    private Result find(long key, SpamClassifier current)
+    {
+        Result result = segments[(int) (key >>> 60)].find(key, current.model().version());
+        if (metrics != null)
+            metrics.cached(result != null);
+        return result;
+    }
+
+    private void keep(long key, SpamClassifier current, double score)
+    {
+        segments[(int) (key >>> 60)].keep(key, new Result(current.model().version(), score));
+    }
+
+    // A score and the version of the model it was scored with
+    private static final class Result
+    {
+        final long version;
+        final double score;
+
+        Result(long version, double score)
+        {
+            this.version = version;
+            this.score = score;
+        }
+    }
+
+    // The scores of one part of the hashes, in LRU order
+    private static final class Segment extends LinkedHashMap<Long, Result>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Segment(int capacity)
+        {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        // The score of a message scored with the given model version, or null
+        synchronized Result find(long key, long version)
+        {
+            Result result = get(key);
+            if (result == null || result.version == version)
+                return result;
+            remove(key);
+            return null;
+        }
+
+        synchronized void keep(long key, Result result)
+        {
+            Result old = get(key);
+            if (old == null || old.version <= result.version)
+                put(key, result);
+        }
+
+        synchronized void clearAll()
+        {
+            clear();
+        }
+
+        synchronized int count()
+        {
+            return size();
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<Long, Result> eldest)
+        {
+            return size() > capacity;
+        }
+    }
+
+    // 64 bit FNV-1a hash of a message, normalized for the Tokenizer or not
+    private static final class Hash
+    {
+        // Classes of the characters that are not letters when normalizing
+        private static final int NONE = 0;
+        private static final int SPACE = 1;
+        private static final int LINE = 2;
+        private static final int OTHER = 3;
+
+        private final boolean normalize;
+        private long hash = 0xcbf29ce484222325L;
+        private long length = 0;
+
+        // The white space that was seen after the last character that was hashed, and whether that character
+        // was an other character
+        private int space = NONE;
+        private boolean other = false;
+
+        Hash(ScoringModel model)
+        {
+            normalize = (model.features() & FeatureExtractor.HEADERS) == 0;
+        }
+
+        void add(int c)
+        {
+            if (!normalize)
+                mix(c);
+            else if (c >= 'a' && c <= 'z')
+                letter(c);
+            else if (c >= 'A' && c <= 'Z')
+                letter(c + ('a' - 'A'));
+            else if (c == ' ' || c == '\t' || c == '\f')
+                space = Math.max(space, SPACE);
+            else if (c == '\n' || c == '\r')
+                space = LINE;
+            else if (space != NONE || !other)
+            {
+                separate();
+                mix(OTHER);
+                other = true;
+            }
+        }
+
+        long value()
+        {
+            /// Spread the bits of the length and the hash over the whole key (the finalizer of MurmurHash3)
+            long h = hash ^ length;
+            h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+            h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+            return h ^ (h >>> 33);
+        }
+
+        private void letter(int c)
+        {
+            separate();
+            mix(c);
+            other = false;
+        }
+
+        // Hash the white space before the next character, unless it is at the start of the message
+        private void separate()
+        {
+            if (space != NONE && length > 0)
+                mix(space);
+            space = NONE;
+        }
+
+        private void mix(int c)
+        {
+            hash = (hash ^ c) * 0x100000001b3L;
+            ++length;
+        }
+    }
+}
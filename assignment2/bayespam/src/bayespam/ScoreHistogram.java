@@ -0,0 +1,81 @@
+package bayespam;
+
+import java.io.PrintStream;
+
+/// Counts the scores (log odds) of regular and spam messages in bins of equal width between min and max,
+/// with one more bin below min and one above max. It shows how well the two classes are separated and how
+/// many messages are close to the decision threshold (0). Histograms with the same bins can be merged.
+/// A histogram is not thread safe, every thread counts in its own histogram.
+public final class ScoreHistogram
+{
+    private final double min;
+    private final double max;
+    private final int bins;
+
+    // Per bin: the counts, bin 0 is below min and bin bins + 1 is at or above max
+    private final long[] regular;
+    private final long[] spam;
+
+    public ScoreHistogram(double min, double max, int bins)
+    {
+        if (!(max > min) || bins < 1)
+            throw new IllegalArgumentException("bad histogram range " + min + ".." + max + " in " + bins + " bins");
+        this.min = min;
+        this.max = max;
+        this.bins = bins;
+        regular = new long[bins + 2];
+        spam = new long[bins + 2];
+    }
+
+    /// An empty histogram with the same bins as this one
+    public ScoreHistogram emptyCopy()
+    {
+        return new ScoreHistogram(min, max, bins);
+    }
+
+    /// Count the score of a message of the given type
+    public void add(Bayespam.MessageType type, double score)
+    {
+        int bin;
+        if (score < min)
+            bin = 0;
+        else if (score >= max)
+            bin = bins + 1;
+        else
+            bin = 1 + Math.min(bins - 1, (int) ((score - min) / (max - min) * bins));
+        if (type == Bayespam.MessageType.NORMAL)
+            ++regular[bin];
+        else
+            ++spam[bin];
+    }
+
+    /// Add the counts of another histogram with the same bins to this one
+    public void merge(ScoreHistogram other)
+    {
+        if (other.min != min || other.max != max || other.bins != bins)
+            throw new IllegalArgumentException("histograms have different bins");
+        for (int bin = 0; bin < regular.length; ++bin)
+        {
+            regular[bin] += other.regular[bin];
+            spam[bin] += other.spam[bin];
+        }
+    }
+
+    /// Print one line per bin with the counts of regular and spam messages
+    public void print(PrintStream out)
+    {
+        out.println("Score histogram (log odds):\n");
+        out.println("score range            \tregular\tspam");
+        for (int bin = 0; bin < regular.length; ++bin)
+        {
+            String from = bin == 0 ? "-inf" : Double.toString(lowerBound(bin));
+            String to = bin == bins + 1 ? "inf" : Double.toString(lowerBound(bin + 1));
+            out.println(String.format("[%10s, %10s)\t%d\t%d", from, to, regular[bin], spam[bin]));
+        }
+    }
+
+    private double lowerBound(int bin)
+    {
+        return min + (max - min) * (bin - 1) / bins;
+    }
+}
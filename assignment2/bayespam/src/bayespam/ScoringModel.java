@@ -0,0 +1,169 @@
+package bayespam;
+
+import java.nio.DoubleBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/// The frozen model that is used to classify messages. For every word it holds a single number, the
+/// log likelihood ratio
+///
+///     llr(w) = log(P(w|spam) P(w) / P(spam)) - log(P(w|regular) P(w) / P(regular))
+///
+/// so the log odds of a message being spam are the log odds of the a priori probabilities plus the
+/// sum of llr(w) over the words of the message. Classifying a word is one hash lookup and one addition.
+/// The model is never changed after it has been built, so it can be shared between threads. The ratios are
+/// read through a DoubleBuffer: of a model that is built here it wraps an array on the heap, of a model that
+/// is loaded from a file it is a view of the mapped file (see ModelFile).
+public final class ScoringModel
+{
+    // Source of the versions of the models
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    // The ids of the terms and per id the log likelihood ratio
+    private final TermIndex terms;
+    private final DoubleBuffer llr;
+
+    // Bounds on what a single word can add to the log odds (unknown words add 0)
+    private final double minLlr;
+    private final double maxLlr;
+
+    // log P(spam) - log P(regular)
+    private final double priorLogOdds;
+
+    // Options and word size threshold of the FeatureExtractor the model was trained with
+    private final int features;
+    private final int wordSizeThreshold;
+
+    // Unique number of this model in the JVM
+    private final long version = VERSIONS.incrementAndGet();
+
+    /// A model of the terms of an index with per id their log likelihood ratio; the index must not be changed
+    /// after this
+    ScoringModel(TermIndex terms, double[] llr, double priorLogOdds, int features, int wordSizeThreshold)
+    {
+        this(terms, DoubleBuffer.wrap(llr), priorLogOdds, features, wordSizeThreshold);
+    }
+
+    /// Like the constructor above, with the ratios read by id from a buffer that is not changed after this
+    ScoringModel(TermIndex terms, DoubleBuffer llr, double priorLogOdds, int features, int wordSizeThreshold)
+    {
+        this.terms = terms;
+        this.llr = llr;
+        this.priorLogOdds = priorLogOdds;
+        this.features = features;
+        this.wordSizeThreshold = wordSizeThreshold;
+
+        double min = 0;
+        double max = 0;
+        for (int id = 0; id < terms.size(); ++id)
+        {
+            min = Math.min(min, llr.get(id));
+            max = Math.max(max, llr.get(id));
+        }
+        minLlr = min;
+        maxLlr = max;
+    }
+
+    /// Freeze the log probabilities of a trained vocabulary into a scoring model. The parts of n-grams that
+    /// have no counts of their own get a log likelihood ratio of 0, like terms that are not in the model.
+    static ScoringModel freeze(Vocabulary vocab, double logAPrioriRegular, double logAPrioriSpam, int features,
+                               int wordSizeThreshold)
+    {
+        double[] llr = new double[vocab.size()];
+        for (int id = 0; id < vocab.size(); ++id)
+        {
+            if (vocab.counted(id))
+                llr[id] = llr(vocab.logProbSpam[id], vocab.logProbRegular[id], logAPrioriRegular, logAPrioriSpam);
+        }
+        return new ScoringModel(vocab.terms().copy(), llr, logAPrioriSpam - logAPrioriRegular, features,
+                                wordSizeThreshold);
+    }
+
+    /// The log likelihood ratio of a word with the given log probabilities (see Bayespam.logProbability())
+    static double llr(double logProbSpam, double logProbRegular, double logAPrioriRegular, double logAPrioriSpam)
+    {
+        return (logProbSpam - logAPrioriSpam) - (logProbRegular - logAPrioriRegular);
+    }
+
+    /// Number of words in the model
+    public int size()
+    {
+        return terms.size();
+    }
+
+    /// The ids of the terms of the model
+    TermIndex terms()
+    {
+        return terms;
+    }
+
+    /// The word (or n-gram, its words joined by spaces) with the given id
+    String word(int id)
+    {
+        return terms.term(id);
+    }
+
+    /// The log likelihood ratio of the word with the given id, 0 for -1 (a word that is not in the model)
+    double llr(int id)
+    {
+        return id < 0 ? 0 : llr.get(id);
+    }
+
+    /// Options of the FeatureExtractor that must be used with this model
+    public int features()
+    {
+        return features;
+    }
+
+    /// Word size threshold of the FeatureExtractor that must be used with this model
+    public int wordSizeThreshold()
+    {
+        return wordSizeThreshold;
+    }
+
+    /// Number of this model, every model that is built or loaded gets a higher one. Results that were computed
+    /// with one model can be told apart from those of a newer one by it (see ResultCache).
+    public long version()
+    {
+        return version;
+    }
+
+    /// A new feature extractor for messages that are classified with this model. It can give the ids of the
+    /// features in this model (see llr(int)), which spares looking up n-grams by their text.
+    public FeatureExtractor newExtractor()
+    {
+        return new FeatureExtractor(features, wordSizeThreshold, terms, false);
+    }
+
+    /// The smallest log likelihood ratio of any word, at most 0
+    public double minLlr()
+    {
+        return minLlr;
+    }
+
+    /// The largest log likelihood ratio of any word, at least 0
+    public double maxLlr()
+    {
+        return maxLlr;
+    }
+
+    /// Log odds of a message before any of its words are seen
+    public double priorLogOdds()
+    {
+        return priorLogOdds;
+    }
+
+    /// The log likelihood ratio of a word, 0 for words that are not in the model
+    public double llr(String word)
+    {
+        int id = terms.id(word);
+        return id < 0 ? 0 : llr.get(id);
+    }
+
+    /// The log likelihood ratio of a word given as the first length characters of a buffer,
+    /// 0 for words that are not in the model. The hash must be the hash code of the word as a String.
+    public double llr(char[] word, int length, int hash)
+    {
+        int id = terms.id(word, length, hash);
+        return id < 0 ? 0 : llr.get(id);
+    }
+}
@@ -0,0 +1,214 @@
+package bayespam;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/// Classifies single messages with a trained model. The model is never changed and every thread gets its
+/// own feature extractor, so one classifier can be shared by any number of threads without locking. The
+/// extractor of a thread is shared by all classifiers and is only bound to a model while it classifies, so
+/// a thread does not keep a classifier or its model reachable after it is replaced (e.g. by a new model).
+///
+/// A classifier can stop early. After every word it bounds what the rest of the message can still add to
+/// the log odds: at most maxFeatures(message size) - words seen more words, each adding between minLlr and
+/// maxLlr. Once the decision can no longer flip within that bound the rest of the message is skipped. This
+/// bound is a worst case, so it mostly helps on long messages. Optionally the classifier also stops as soon
+/// as the log odds pass a confidence margin, which is much faster but may give another decision than reading
+/// the whole message. After an early stop the score has the sign of the decision but is not the score of
+/// the whole message.
+public final class SpamClassifier
+{
+    private final ScoringModel model;
+
+    // Whether to stop when the decision is known, and the log odds at which to stop anyway
+    private final boolean earlyExit;
+    private final double margin;
+
+    // Where every classification is counted, or null
+    private final ClassifierMetrics metrics;
+
+    // Feature extractor and running score of every thread that classifies
+    private static final ThreadLocal<Scorer> SCORERS = new ThreadLocal<Scorer>()
+    {
+        protected Scorer initialValue()
+        {
+            return new Scorer();
+        }
+    };
+
+    /// A classifier that always reads the whole message
+    public SpamClassifier(ScoringModel model)
+    {
+        this(model, false, Double.POSITIVE_INFINITY, null);
+    }
+
+    /// A classifier that stops early. A margin of Double.POSITIVE_INFINITY only stops when the decision
+    /// can no longer change, a finite margin also stops when the absolute log odds reach it.
+    public SpamClassifier(ScoringModel model, double margin)
+    {
+        this(model, true, margin, null);
+    }
+
+    private SpamClassifier(ScoringModel model, boolean earlyExit, double margin, ClassifierMetrics metrics)
+    {
+        this.model = model;
+        this.earlyExit = earlyExit;
+        this.margin = margin;
+        this.metrics = metrics;
+    }
+
+    /// A classifier like this one that counts every classification in the given metrics
+    public SpamClassifier measured(ClassifierMetrics metrics)
+    {
+        return new SpamClassifier(model, earlyExit, margin, metrics);
+    }
+
+    /// The model used by this classifier
+    public ScoringModel model()
+    {
+        return model;
+    }
+
+    /// The metrics every classification is counted in, or null
+    ClassifierMetrics metrics()
+    {
+        return metrics;
+    }
+
+    /// The spam score (log odds of spam against regular) of a message, positive means spam
+    public double classify(CharSequence message)
+    {
+        long start = metrics == null ? 0 : System.nanoTime();
+        Scorer scorer = SCORERS.get().start(this);
+        try
+        {
+            scorer.extractor.extract(message, scorer);
+            return scorer.finish(start);
+        }
+        finally
+        {
+            scorer.release();
+        }
+    }
+
+    /// The spam score of a message read from a stream, the stream is read to the end but not closed
+    public double classify(InputStream message)
+    throws IOException
+    {
+        long start = metrics == null ? 0 : System.nanoTime();
+        Scorer scorer = SCORERS.get().start(this);
+        try
+        {
+            scorer.extractor.extract(message, scorer);
+            return scorer.finish(start);
+        }
+        finally
+        {
+            scorer.release();
+        }
+    }
+
+    /// The spam score of a message given as the bytes between position and limit of a buffer
+    public double classify(ByteBuffer message)
+    {
+        long start = metrics == null ? 0 : System.nanoTime();
+        Scorer scorer = SCORERS.get().start(this);
+        try
+        {
+            scorer.extractor.extract(message, scorer);
+            return scorer.finish(start);
+        }
+        finally
+        {
+            scorer.release();
+        }
+    }
+
+    /// The spam score of a message file
+    public double classify(File message)
+    throws IOException
+    {
+        long start = metrics == null ? 0 : System.nanoTime();
+        Scorer scorer = SCORERS.get().start(this);
+        try
+        {
+            scorer.extractor.extract(message, scorer);
+            return scorer.finish(start);
+        }
+        finally
+        {
+            scorer.release();
+        }
+    }
+
+    /// Whether a spam score means the message is spam
+    public static boolean isSpam(double score)
+    {
+        return score > 0;
+    }
+
+    /// Number of words the current thread scored in its last classification (by any classifier)
+    public int wordsScored()
+    {
+        return SCORERS.get().seen;
+    }
+
+    // Adds the log likelihood ratio of every word to the log odds of the message. Only refers to a classifier
+    // and its model between start() and release().
+    private static final class Scorer implements FeatureExtractor.IdSink
+    {
+        FeatureExtractor extractor;
+        int wordSizeThreshold;
+        SpamClassifier classifier;
+        ScoringModel model;
+        double logOdds;
+        int seen;
+
+        // Start on a message for a classifier, binding the extractor to its model
+        Scorer start(SpamClassifier classifier)
+        {
+            this.classifier = classifier;
+            model = classifier.model;
+            if (extractor == null || extractor.features() != model.features()
+                || wordSizeThreshold != model.wordSizeThreshold())
+            {
+                extractor = model.newExtractor();
+                wordSizeThreshold = model.wordSizeThreshold();
+            }
+            else
+                extractor.bind(model.terms());
+            logOdds = model.priorLogOdds();
+            seen = 0;
+            return this;
+        }
+
+        // The score of the message, counted in the metrics (if any) with the time since start
+        double finish(long start)
+        {
+            if (classifier.metrics != null)
+                classifier.metrics.scored(seen, System.nanoTime() - start);
+            return logOdds;
+        }
+
+        // Drop the classifier and its model
+        void release()
+        {
+            extractor.bind(null);
+            classifier = null;
+            model = null;
+        }
+
+        public boolean feature(int id)
+        {
+            logOdds += model.llr(id);
+            ++seen;
+            if (!classifier.earlyExit)
+                return true;
+
+            /// Stop when the log odds are past the margin, or when the rest of the message cannot flip the sign
+            if (Math.abs(logOdds) >= classifier.margin)
+                return false;
+            int remaining = extractor.maxFeatures(extractor.messageSize()) - seen;
+            return !(logOdds + remaining * model.minLlr() > 0 || logOdds + remaining * model.maxLlr() <= 0);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package bayespam;
+
+import java.util.Arrays;
+
+/// Gives ids to the terms (features) of a model: words, header tokens and n-grams, in the order in which they
+/// are added. Words and header tokens are kept as Strings in an open addressing hash table. An n-gram is not
+/// kept as text: it is the pair of the id of its first n - 1 words and the id of its last word, packed into a
+/// long (see LongIndex.pack()) and looked up in a LongIndex. A bigram is the pair of its two word ids, a
+/// trigram the pair of the id of its first bigram and its last word id, and so on, so an n-gram takes the
+/// same 8 bytes whatever its length and looking it up costs one probe of a long, without building its text.
+///
+/// The words and shorter n-grams an n-gram is made of must have ids as well, so they are added with it when
+/// they are new. When they are not features themselves (e.g. the words of a model of bigrams only) they are
+/// never counted and stay at zero counts. They always get a lower id than the n-grams made of them.
+///
+/// The text of an n-gram is its words joined by single spaces, e.g. "money transfer"; words and header tokens
+/// never contain spaces. The text is only made when it is asked for with term(), and the methods that take
+/// the text of a term split it into the ids of its parts, so the index can be used through text as well
+/// (e.g. to read a model file). An index is not thread safe while terms are added.
+final class TermIndex
+{
+    // The table is grown when it is more than this fraction full
+    private static final double MAX_LOAD = 0.6;
+
+    // Hash table of the words: id + 1 of the word in every slot, 0 for an empty slot
+    private int[] slots;
+    private int mask;
+
+    // The n-grams: their keys and per n-gram index in the LongIndex the term id
+    private final LongIndex grams;
+    private int[] gramTerm;
+
+    // Per id: the word and its hash code (the word is null for an n-gram), and the index of the n-gram
+    // in grams (-1 for a word)
+    private String[] words;
+    private int[] hashes;
+    private int[] gram;
+
+    private int size = 0;
+
+    TermIndex(int expectedSize)
+    {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / MAX_LOAD)) - 1) << 1;
+        slots = new int[capacity];
+        mask = capacity - 1;
+        words = new String[Math.max(16, expectedSize)];
+        hashes = new int[words.length];
+        gram = new int[words.length];
+        grams = new LongIndex(Math.max(16, expectedSize / 2));
+        gramTerm = new int[Math.max(16, expectedSize / 2)];
+    }
+
+    /// Number of terms in the index
+    int size()
+    {
+        return size;
+    }
+
+    /// Number of ids the per id arrays of a user of the index need now; only grows
+    int capacity()
+    {
+        return words.length;
+    }
+
+    /// Whether the term with the given id is an n-gram
+    boolean isGram(int id)
+    {
+        return gram[id] >= 0;
+    }
+
+    /// The text of a term
+    String term(int id)
+    {
+        if (gram[id] < 0)
+            return words[id];
+        long key = grams.key(gram[id]);
+        return term(LongIndex.first(key)) + " " + term(LongIndex.second(key));
+    }
+
+    /// The id of the n-gram with the given key (see LongIndex.pack()), or -1 when it is not in the index
+    int gram(long key)
+    {
+        int index = grams.id(key);
+        return index < 0 ? -1 : gramTerm[index];
+    }
+
+    /// The id of the n-gram with the given key, which is added when it is not in the index yet
+    int addGram(long key)
+    {
+        int before = grams.size();
+        int index = grams.add(key);
+        if (index < before)
+            return gramTerm[index];
+        if (index == gramTerm.length)
+            gramTerm = Arrays.copyOf(gramTerm, index * 2);
+        int id = insert(null, 0, index);
+        gramTerm[index] = id;
+        return id;
+    }
+
+    /// The id of a term given by its text, or -1 when it is not in the index
+    int id(String term)
+    {
+        return find(term, term.hashCode(), false);
+    }
+
+    /// The id of a term given by its text, which is added (with its parts) when it is not in the index yet
+    int add(String term)
+    {
+        return find(term, term.hashCode(), true);
+    }
+
+    /// The id of a term given by its text as the first length characters of a buffer, or -1 when it is not
+    /// in the index. The hash must be the hash code of the text as a String.
+    int id(char[] text, int length, int hash)
+    {
+        return find(text, 0, length, hash, false);
+    }
+
+    /// Like id(), but the term (with its parts) is added when it is not in the index yet. Only then a String
+    /// is made for a word.
+    int add(char[] text, int length, int hash)
+    {
+        return find(text, 0, length, hash, true);
+    }
+
+    /// Add all terms of another index, in its order. Returns per id of the other index the id in this one.
+    int[] addAll(TermIndex other)
+    {
+        return addAll(other, null);
+    }
+
+    /// Add the terms of another index for which keep is true and the parts of the n-grams among them, in the
+    /// order of the other index. Returns per id of the other index the id in this one, -1 for a term left out.
+    int[] addAll(TermIndex other, boolean[] keep)
+    {
+        boolean[] needed = null;
+        if (keep != null)
+        {
+            /// The parts of an n-gram have lower ids than the n-gram
+            needed = Arrays.copyOf(keep, other.size);
+            for (int id = other.size - 1; id >= 0; --id)
+            {
+                if (needed[id] && other.gram[id] >= 0)
+                {
+                    long key = other.grams.key(other.gram[id]);
+                    needed[LongIndex.first(key)] = true;
+                    needed[LongIndex.second(key)] = true;
+                }
+            }
+        }
+        int[] ids = new int[other.size];
+        for (int id = 0; id < other.size; ++id)
+        {
+            if (needed != null && !needed[id])
+                ids[id] = -1;
+            else if (other.gram[id] < 0)
+                ids[id] = addWord(other.words[id], other.hashes[id]);
+            else
+            {
+                long key = other.grams.key(other.gram[id]);
+                ids[id] = addGram(LongIndex.pack(ids[LongIndex.first(key)], ids[LongIndex.second(key)]));
+            }
+        }
+        return ids;
+    }
+
+    /// A copy of this index, with the same ids
+    TermIndex copy()
+    {
+        TermIndex copy = new TermIndex(size);
+        copy.addAll(this);
+        return copy;
+    }
+
+    // Look up (and add) a term given as a String
+    private int find(String term, int hash, boolean add)
+    {
+        if (term.indexOf(' ') < 0)
+            return add ? addWord(term, hash) : wordId(term, hash);
+        char[] text = term.toCharArray();
+        return find(text, 0, text.length, hash, add);
+    }
+
+    // Look up (and add) a term given as characters of a buffer: a word, or the n-gram of the words before
+    // the last space and the word after it. The hash is only used for a word.
+    private int find(char[] text, int offset, int length, int hash, boolean add)
+    {
+        int space = offset + length - 1;
+        while (space >= offset && text[space] != ' ')
+            --space;
+        if (space < offset)
+        {
+            int id = wordId(text, offset, length, hash);
+            return id >= 0 || !add ? id : insert(new String(text, offset, length), hash, -1);
+        }
+        int prefix = find(text, offset, space - offset, hash(text, offset, space - offset), add);
+        int last = find(text, space + 1, offset + length - space - 1, hash(text, space + 1, offset + length - space - 1), add);
+        if (prefix < 0 || last < 0)
+            return -1;
+        long key = LongIndex.pack(prefix, last);
+        return add ? addGram(key) : gram(key);
+    }
+
+    private int addWord(String word, int hash)
+    {
+        int id = wordId(word, hash);
+        return id >= 0 ? id : insert(word, hash, -1);
+    }
+
+    private int wordId(String word, int hash)
+    {
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask)
+        {
+            int id = slots[slot] - 1;
+            if (id < 0)
+                return -1;
+            if (hashes[id] == hash && gram[id] < 0 && words[id].equals(word))
+                return id;
+        }
+    }
+
+    private int wordId(char[] text, int offset, int length, int hash)
+    {
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask)
+        {
+            int id = slots[slot] - 1;
+            if (id < 0)
+                return -1;
+            if (hashes[id] == hash && gram[id] < 0 && equals(words[id], text, offset, length))
+                return id;
+        }
+    }
+
+    // Add a new term: a word with its hash code, or an n-gram with its index in grams
+    private int insert(String word, int hash, int gramIndex)
+    {
+        if (size == words.length)
+        {
+            int capacity = words.length * 2;
+            words = Arrays.copyOf(words, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            gram = Arrays.copyOf(gram, capacity);
+        }
+        int id = size++;
+        words[id] = word;
+        hashes[id] = hash;
+        gram[id] = gramIndex;
+        if (gramIndex < 0)
+        {
+            int slot = spread(hash) & mask;
+            while (slots[slot] != 0)
+                slot = (slot + 1) & mask;
+            slots[slot] = id + 1;
+            if (size > MAX_LOAD * slots.length)
+                rehash();
+        }
+        return id;
+    }
+
+    // Whether a word equals length characters of a buffer from offset
+    private static boolean equals(String word, char[] text, int offset, int length)
+    {
+        if (word.length() != length)
+            return false;
+        for (int i = 0; i < length; ++i)
+        {
+            if (word.charAt(i) != text[offset + i])
+                return false;
+        }
+        return true;
+    }
+
+    // The String hash code of length characters of a buffer from offset
+    private static int hash(char[] text, int offset, int length)
+    {
+        int hash = 0;
+        for (int i = offset; i < offset + length; ++i)
+            hash = 31 * hash + text[i];
+        return hash;
+    }
+
+    // Mix the high bits into the low bits, since the slot is taken from the low bits
+    private static int spread(int hash)
+    {
+        return hash ^ (hash >>> 16);
+    }
+
+    private void rehash()
+    {
+        slots = new int[slots.length * 2];
+        mask = slots.length - 1;
+        for (int id = 0; id < size; ++id)
+        {
+            if (gram[id] >= 0)
+                continue;
+            int slot = spread(hashes[id]) & mask;
+            while (slots[slot] != 0)
+                slot = (slot + 1) & mask;
+            slots[slot] = id + 1;
+        }
+    }
+}
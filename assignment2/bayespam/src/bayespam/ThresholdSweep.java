@@ -0,0 +1,210 @@
+package bayespam;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/// Keeps the score (log odds) of every test message in a primitive array per class, so the errors at every
+/// decision threshold can be computed afterwards without scoring the messages again. A message is classified
+/// as spam when its score is above the threshold; SpamClassifier uses threshold 0.
+///
+/// After the scores of both classes are sorted once, a single walk over them in order gives the whole curve:
+/// at every distinct score the false reject rate (regular above the threshold) and the false accept rate (spam
+/// at or below it). This is the DET curve (FAR against FRR) and also the ROC curve (the true positive rate
+/// 1 - FAR against the false positive rate FRR). The area under the ROC curve is the chance that a random spam
+/// message scores above a random regular one (ties count half). Sweeps of parts of a test set can be merged.
+/// A sweep takes 8 bytes per message and is not thread safe, every thread adds to its own sweep.
+public final class ThresholdSweep
+{
+    private double[] regular = new double[1024];
+    private double[] spam = new double[1024];
+    private int nRegular = 0;
+    private int nSpam = 0;
+
+    // Whether the scores are sorted
+    private boolean sorted = true;
+
+    /// An empty sweep, for another thread
+    public ThresholdSweep emptyCopy()
+    {
+        return new ThresholdSweep();
+    }
+
+    /// Keep the score of a message of the given type
+    public void add(Bayespam.MessageType type, double score)
+    {
+        if (type == Bayespam.MessageType.NORMAL)
+        {
+            if (nRegular == regular.length)
+                regular = Arrays.copyOf(regular, nRegular * 2);
+            regular[nRegular++] = score;
+        }
+        else
+        {
+            if (nSpam == spam.length)
+                spam = Arrays.copyOf(spam, nSpam * 2);
+            spam[nSpam++] = score;
+        }
+        sorted = false;
+    }
+
+    /// Add the scores of another sweep to this one
+    public void merge(ThresholdSweep other)
+    {
+        regular = append(regular, nRegular, other.regular, other.nRegular);
+        nRegular += other.nRegular;
+        spam = append(spam, nSpam, other.spam, other.nSpam);
+        nSpam += other.nSpam;
+        sorted = false;
+    }
+
+    /// False reject rate at a threshold: the fraction of the regular messages that scores above it
+    public double frr(double threshold)
+    {
+        sort();
+        return nRegular == 0 ? 0 : (double) (nRegular - countAtOrBelow(regular, nRegular, threshold)) / nRegular;
+    }
+
+    /// False accept rate at a threshold: the fraction of the spam that scores at or below it
+    public double far(double threshold)
+    {
+        sort();
+        return nSpam == 0 ? 0 : (double) countAtOrBelow(spam, nSpam, threshold) / nSpam;
+    }
+
+    /// The lowest threshold at which at most the given fraction of the regular messages is rejected as spam,
+    /// which gives the lowest false accept rate for that false reject rate
+    public double thresholdForFrr(double targetFrr)
+    {
+        sort();
+        int rejected = (int) Math.floor(targetFrr * nRegular + 1e-9);
+        if (nRegular == 0 || rejected >= nRegular)
+            return Double.NEGATIVE_INFINITY;
+        /// Spam is above the threshold, so the threshold is the highest regular score that must not be rejected
+        return regular[nRegular - rejected - 1];
+    }
+
+    /// Area under the ROC curve
+    public double auc()
+    {
+        sort();
+        if (nRegular == 0 || nSpam == 0)
+            return 0;
+        double pairs = 0;
+        int below = 0;
+        for (int s = 0; s < nSpam; ++s)
+        {
+            /// The regular scores below and equal to this spam score, in one walk since both are sorted
+            while (below < nRegular && regular[below] < spam[s])
+                ++below;
+            int equal = below;
+            while (equal < nRegular && regular[equal] == spam[s])
+                ++equal;
+            pairs += below + 0.5 * (equal - below);
+        }
+        return pairs / ((double) nRegular * nSpam);
+    }
+
+    /// The threshold where the false accept and false reject rates are closest (the equal error rate point)
+    public double equalErrorThreshold()
+    {
+        final double[] best = { Double.POSITIVE_INFINITY, 0 };
+        walk(new Visitor()
+        {
+            public void point(double threshold, double far, double frr)
+            {
+                if (Math.abs(far - frr) < best[0])
+                {
+                    best[0] = Math.abs(far - frr);
+                    best[1] = threshold;
+                }
+            }
+        });
+        return best[1];
+    }
+
+    /// Write the curve as comma separated values: one line per distinct score, with the threshold, the false
+    /// accept and false reject rates (the DET curve) and the true and false positive rates (the ROC curve)
+    public void writeCurve(final PrintStream out)
+    {
+        out.println("threshold,far,frr,tpr,fpr");
+        walk(new Visitor()
+        {
+            public void point(double threshold, double far, double frr)
+            {
+                out.println(threshold + "," + far + "," + frr + "," + (1 - far) + "," + frr);
+            }
+        });
+    }
+
+    /// Print the AUC, the equal error rate and the errors at threshold 0 and at the threshold for a target
+    /// false reject rate
+    public void print(PrintStream out, double targetFrr)
+    {
+        double eer = equalErrorThreshold();
+        double target = thresholdForFrr(targetFrr);
+        out.println("Threshold sweep over " + (nRegular + nSpam) + " messages:\n");
+        out.println("AUC: " + auc());
+        out.println(String.format("threshold %12.4f: FAR %.4f%%, FRR %.4f%%", 0.0, 100 * far(0), 100 * frr(0)));
+        out.println(String.format("threshold %12.4f: FAR %.4f%%, FRR %.4f%% (equal error rate)", eer, 100 * far(eer), 100 * frr(eer)));
+        out.println(String.format("threshold %12.4f: FAR %.4f%%, FRR %.4f%% (FRR at most %.4f%%)", target, 100 * far(target),
+        		100 * frr(target), 100 * targetFrr));
+    }
+
+    // Receives the points of the curve
+    private interface Visitor
+    {
+        void point(double threshold, double far, double frr);
+    }
+
+    // Give the errors at every distinct score to the visitor, from the lowest threshold up, starting with
+    // -infinity (everything is spam)
+    private void walk(Visitor visitor)
+    {
+        sort();
+        visitor.point(Double.NEGATIVE_INFINITY, 0, nRegular == 0 ? 0 : 1);
+        int r = 0;
+        int s = 0;
+        while (r < nRegular || s < nSpam)
+        {
+            double threshold = r == nRegular ? spam[s] : s == nSpam ? regular[r] : Math.min(regular[r], spam[s]);
+            while (r < nRegular && regular[r] <= threshold)
+                ++r;
+            while (s < nSpam && spam[s] <= threshold)
+                ++s;
+            visitor.point(threshold, nSpam == 0 ? 0 : (double) s / nSpam, nRegular == 0 ? 0 : (double) (nRegular - r) / nRegular);
+        }
+    }
+
+    private void sort()
+    {
+        if (sorted)
+            return;
+        Arrays.sort(regular, 0, nRegular);
+        Arrays.sort(spam, 0, nSpam);
+        sorted = true;
+    }
+
+    // Number of the first n sorted scores that are at or below a threshold
+    private static int countAtOrBelow(double[] scores, int n, double threshold)
+    {
+        int low = 0;
+        int high = n;
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if (scores[middle] <= threshold)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    private static double[] append(double[] scores, int n, double[] more, int nMore)
+    {
+        if (n + nMore > scores.length)
+            scores = Arrays.copyOf(scores, Math.max(n + nMore, scores.length * 2));
+        System.arraycopy(more, 0, scores, n, nMore);
+        return scores;
+    }
+}
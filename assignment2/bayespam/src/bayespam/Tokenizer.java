@@ -0,0 +1,157 @@
+package bayespam;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/// Splits text into words the same way as a StringTokenizer followed by cleaning: words are separated by
+/// white space (space, tab, newline, carriage return, form feed), everything that is not a letter a-z is
+/// dropped, the letters are made lowercase and words that are not longer than the word size threshold
+/// are skipped. All of this is done in a single pass over the characters or bytes, into a reused buffer,
+/// so no Strings are created. Bytes are not decoded: in ASCII compatible charsets every byte above 127
+/// belongs to a character that is not a letter a-z, so it can be dropped directly.
+///
+/// The hash code of every word is computed on the way and is equal to the hash code of the same word
+/// as a String. A tokenizer keeps the word it is busy with between calls of feed(), so a message can be
+/// given in blocks. It is not thread safe, every thread needs its own tokenizer.
+public final class Tokenizer
+{
+    /// Receives the words of a text
+    public interface Sink
+    {
+        /// Called for every word; the word is only valid during the call.
+        /// Return false to stop tokenizing the rest of the text.
+        boolean word(char[] word, int length, int hash);
+    }
+
+    private final int wordSizeThreshold;
+
+    // The word that is being read, inToken is set by any character that is not white space
+    private char[] word = new char[64];
+    private int length = 0;
+    private int hash = 0;
+    private boolean inToken = false;
+
+    // Whether a skipped token or a line break came after the last word given to the sink
+    private boolean broken = true;
+    private boolean adjacent = false;
+
+    public Tokenizer(int wordSizeThreshold)
+    {
+        this.wordSizeThreshold = wordSizeThreshold;
+    }
+
+    /// Tokenize a complete text. Returns false when the sink stopped early.
+    public boolean tokenize(CharSequence text, Sink sink)
+    {
+        reset();
+        for (int i = 0; i < text.length(); ++i)
+        {
+            if (!accept(text.charAt(i), sink))
+                return false;
+        }
+        return finish(sink);
+    }
+
+    /// Tokenize a block of bytes of a text. Returns false when the sink stopped early.
+    public boolean feed(byte[] bytes, int offset, int count, Sink sink)
+    {
+        for (int i = offset; i < offset + count; ++i)
+        {
+            if (!accept(bytes[i] & 0xff, sink))
+                return false;
+        }
+        return true;
+    }
+
+    /// Tokenize the remaining bytes of a buffer, the position of the buffer is not changed.
+    /// Returns false when the sink stopped early.
+    public boolean feed(ByteBuffer bytes, Sink sink)
+    {
+        return feed(bytes, bytes.position(), bytes.limit(), sink);
+    }
+
+    /// Tokenize the bytes from index from up to index to of a buffer. Returns false when the sink stopped early.
+    public boolean feed(ByteBuffer bytes, int from, int to, Sink sink)
+    {
+        if (bytes.hasArray())
+            return feed(bytes.array(), bytes.arrayOffset() + from, to - from, sink);
+        for (int i = from; i < to; ++i)
+        {
+            if (!accept(bytes.get(i) & 0xff, sink))
+                return false;
+        }
+        return true;
+    }
+
+    /// End the text that was given to feed(), this gives the last word to the sink
+    public boolean finish(Sink sink)
+    {
+        return endWord(sink);
+    }
+
+    /// Forget the word that is being read, to start on a new text
+    public void reset()
+    {
+        clearWord();
+        broken = true;
+    }
+
+    /// Whether the word that is given to the sink directly follows the previous word on the same line,
+    /// without a skipped (too short or empty after cleaning) token in between. Used to build bigrams.
+    public boolean followsPrevious()
+    {
+        return adjacent;
+    }
+
+    private boolean accept(int c, Sink sink)
+    {
+        if (c >= 'a' && c <= 'z')
+            append(c);
+        else if (c >= 'A' && c <= 'Z')
+            append(c + ('a' - 'A'));
+        else if (c == ' ' || c == '\t' || c == '\f')
+            return endWord(sink);
+        else if (c == '\n' || c == '\r')
+        {
+            boolean go = endWord(sink);
+            broken = true;
+            return go;
+        }
+        else
+            inToken = true;
+        return true;
+    }
+
+    private void append(int c)
+    {
+        if (length == word.length)
+            word = Arrays.copyOf(word, length * 2);
+        word[length++] = (char) c;
+        hash = 31 * hash + c;
+        inToken = true;
+    }
+
+    private boolean endWord(Sink sink)
+    {
+        if (!inToken)
+            return true;
+        boolean go = true;
+        if (length > wordSizeThreshold)
+        {
+            adjacent = !broken;
+            broken = false;
+            go = sink.word(word, length, hash);
+        }
+        else
+            broken = true;
+        clearWord();
+        return go;
+    }
+
+    private void clearWord()
+    {
+        length = 0;
+        hash = 0;
+        inToken = false;
+    }
+}
@@ -0,0 +1,257 @@
+package bayespam;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/// Reads the training messages in three stages that run at the same time, so reading the disk and
+/// tokenizing overlap:
+///
+///     list:   one thread walks the regular and spam directories with a DirectoryStream
+///     read:   nReaders threads load the files into memory
+///     count:  nCounters threads extract the features of the loaded messages and count them
+///
+/// The stages are connected by bounded queues. A stage that is ahead blocks until the next stage has taken
+/// something (backpressure), so the directories are never listed as a whole and at most QUEUE_SIZE paths
+/// and MAX_LOADED_BYTES of loaded messages are held, however many messages there are. Tokenizing and
+/// counting are one stage: the feature extractor gives every word straight to the counts, handing single
+/// words to another thread would cost more than counting them.
+///
+/// Every counter counts in its own WordCounts, which are merged at the end, so the counts are the same
+/// as those of a single threaded run. (When the memory is bounded every counter gets its share of the memory
+/// and prunes on its own, so which rare words are kept may differ a little from a single threaded run.)
+final class TrainingPipeline
+{
+    // Capacity of the queues between the stages
+    static final int QUEUE_SIZE = 256;
+
+    // At most this many bytes of loaded messages wait for the counters; a larger message takes all of them
+    static final int MAX_LOADED_BYTES = 16 << 20;
+
+    private final int nReaders;
+    private final int nCounters;
+
+    // Number of regular and spam messages that were counted
+    private final AtomicInteger messagesRegular = new AtomicInteger();
+    private final AtomicInteger messagesSpam = new AtomicInteger();
+
+    TrainingPipeline(int nReaders, int nCounters)
+    {
+        this.nReaders = Math.max(1, nReaders);
+        this.nCounters = Math.max(1, nCounters);
+    }
+
+    /// Count the features of all messages in a directory of regular and a directory of spam messages
+    WordCounts run(final File regularDir, final File spamDir)
+    throws IOException
+    {
+        final BlockingQueue<Message> paths = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        final BlockingQueue<Message> loaded = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        final Semaphore loadedBytes = new Semaphore(MAX_LOADED_BYTES);
+        final AtomicInteger readersLeft = new AtomicInteger(nReaders);
+
+        ExecutorService pool = Executors.newFixedThreadPool(1 + nReaders + nCounters);
+        List<Future<?>> stages = new ArrayList<>();
+        List<Future<WordCounts>> counters = new ArrayList<>();
+        try
+        {
+            stages.add(pool.submit(new Callable<Void>()
+            {
+                public Void call()
+                throws IOException, InterruptedException
+                {
+                    long start = System.nanoTime();
+                    list(regularDir, Bayespam.MessageType.NORMAL, paths);
+                    list(spamDir, Bayespam.MessageType.SPAM, paths);
+                    /// Includes the time the stage waited for the readers to take the paths
+                    if (Bayespam.metrics != null)
+                        Bayespam.metrics.phase(ClassifierMetrics.Phase.LIST, start);
+                    for (int r = 0; r < nReaders; ++r)
+                        paths.put(Message.END);
+                    return null;
+                }
+            }));
+
+            for (int r = 0; r < nReaders; ++r)
+            {
+                stages.add(pool.submit(new Callable<Void>()
+                {
+                    public Void call()
+                    throws IOException, InterruptedException
+                    {
+                        CorpusReader reader = new CorpusReader();
+                        Message message;
+                        while ((message = paths.take()) != Message.END)
+                        {
+                            ByteBuffer bytes = reader.load(message.path.toFile());
+                            message.permits = Math.min(bytes.remaining(), MAX_LOADED_BYTES);
+                            loadedBytes.acquire(message.permits);
+                            message.bytes = ByteBuffer.allocate(bytes.remaining());
+                            message.bytes.put(bytes).flip();
+                            loaded.put(message);
+                        }
+                        /// The last reader tells the counters that all messages are loaded
+                        if (readersLeft.decrementAndGet() == 0)
+                        {
+                            for (int c = 0; c < nCounters; ++c)
+                                loaded.put(Message.END);
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            for (int c = 0; c < nCounters; ++c)
+            {
+                counters.add(pool.submit(new Callable<WordCounts>()
+                {
+                    public WordCounts call()
+                    throws InterruptedException
+                    {
+                        WordCounts counts = Bayespam.newCounts(nCounters);
+                        Bayespam.WordCounter regular = new Bayespam.WordCounter(counts, Bayespam.MessageType.NORMAL);
+                        Bayespam.WordCounter spam = new Bayespam.WordCounter(counts, Bayespam.MessageType.SPAM);
+                        Message message;
+                        while ((message = loaded.take()) != Message.END)
+                        {
+                            if (message.type == Bayespam.MessageType.NORMAL)
+                                regular.count(message.bytes);
+                            else
+                                spam.count(message.bytes);
+                            loadedBytes.release(message.permits);
+                        }
+                        regular.report();
+                        spam.report();
+                        messagesRegular.addAndGet((int) regular.messages);
+                        messagesSpam.addAndGet((int) spam.messages);
+                        return counts;
+                    }
+                }));
+            }
+
+            /// Wait for the counters first: when a stage fails the others may wait forever on a queue,
+            /// but the first failure is found by polling all stages
+            WordCounts counts = null;
+            for (Future<WordCounts> counter : counters)
+            {
+                WordCounts part = get(counter, stages);
+                long start = System.nanoTime();
+                if (counts == null)
+                    counts = part;
+                else
+                    counts.mergeCounts(part);
+                if (Bayespam.metrics != null)
+                    Bayespam.metrics.phase(ClassifierMetrics.Phase.MERGE, start);
+            }
+            for (Future<?> stage : stages)
+                get(stage, stages);
+            return counts;
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    /// Number of regular messages that were counted by run()
+    int messagesRegular()
+    {
+        return messagesRegular.get();
+    }
+
+    /// Number of spam messages that were counted by run()
+    int messagesSpam()
+    {
+        return messagesSpam.get();
+    }
+
+    // Put every file of a directory in the queue
+    private static void list(File dir, Bayespam.MessageType type, BlockingQueue<Message> paths)
+    throws IOException, InterruptedException
+    {
+        DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath());
+        try
+        {
+            for (Path path : stream)
+                paths.put(new Message(path, type));
+        }
+        catch (DirectoryIteratorException e)
+        {
+            throw e.getCause();
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    // The result of a stage; while waiting the other stages are checked for failures every 100 ms, since
+    // a stage that waits for a failed stage never finishes
+    private static <T> T get(Future<T> result, List<Future<?>> stages)
+    throws IOException
+    {
+        try
+        {
+            while (true)
+            {
+                try
+                {
+                    return result.get(100, TimeUnit.MILLISECONDS);
+                }
+                catch (TimeoutException e)
+                {
+                    for (Future<?> stage : stages)
+                    {
+                        if (stage.isDone())
+                            stage.get();
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("- Error: interrupted while reading the training messages", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // A message that goes through the pipeline; END tells a stage that there are no more messages
+    private static final class Message
+    {
+        static final Message END = new Message(null, null);
+
+        final Path path;
+        final Bayespam.MessageType type;
+        ByteBuffer bytes;
+        int permits;
+
+        Message(Path path, Bayespam.MessageType type)
+        {
+            this.path = path;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package bayespam;
+
+import java.util.Arrays;
+
+/// The vocabulary of the classifier. Every term (a word, a header token or an n-gram) gets an id from a
+/// TermIndex (the order in which it was added); n-grams are keyed by the packed ids of their parts there,
+/// not by their text. The counts and log probabilities of the terms are kept in plain arrays indexed by
+/// that id, so there is no object per term apart from the words themselves, and looking up or counting a
+/// term that is already known does not allocate anything.
+///
+/// The parts of an n-gram that are not counted themselves (e.g. the words of a vocabulary of bigrams
+/// only) are in the vocabulary with zero counts.
+public class Vocabulary implements WordCounts
+{
+    // The ids of the terms
+    private final TermIndex terms;
+
+    // Per id: the counts
+    int[] countRegular;
+    int[] countSpam;
+
+    // Per id: the log of the probabilities that are used for classification
+    double[] logProbRegular = new double[0];
+    double[] logProbSpam = new double[0];
+
+    public Vocabulary()
+    {
+        this(1024);
+    }
+
+    public Vocabulary(int expectedSize)
+    {
+        this(new TermIndex(expectedSize));
+    }
+
+    // A vocabulary of the terms of an index, with zero counts
+    Vocabulary(TermIndex terms)
+    {
+        this.terms = terms;
+        countRegular = new int[terms.capacity()];
+        countSpam = new int[terms.capacity()];
+    }
+
+    /// Number of terms in the vocabulary
+    public int size()
+    {
+        return terms.size();
+    }
+
+    /// The ids of the terms
+    TermIndex terms()
+    {
+        return terms;
+    }
+
+    /// The word (or n-gram, its words joined by spaces) with the given id
+    public String word(int id)
+    {
+        return terms.term(id);
+    }
+
+    /// Whether the term with the given id has any counts; the parts of an n-gram may have none
+    public boolean counted(int id)
+    {
+        return countRegular[id] != 0 || countSpam[id] != 0;
+    }
+
+    /// The id of a word, or -1 when it is not in the vocabulary
+    public int id(String word)
+    {
+        return terms.id(word);
+    }
+
+    /// The id of a word given as the first length characters of a buffer, or -1 when it is not in the vocabulary.
+    /// The hash must be the hash code of the word as a String.
+    public int id(char[] word, int length, int hash)
+    {
+        return terms.id(word, length, hash);
+    }
+
+    /// The id of a word, the word is added with zero counts when it is not in the vocabulary yet
+    public int add(String word)
+    {
+        return reserve(terms.add(word));
+    }
+
+    /// The id of a word given as the first length characters of a buffer, the word is added with zero
+    /// counts when it is not in the vocabulary yet. Only then a String is made for it.
+    public int add(char[] word, int length, int hash)
+    {
+        return reserve(terms.add(word, length, hash));
+    }
+
+    /// Increase the counter of the term with the given id by one. The id may be one that was just added to
+    /// the TermIndex of the vocabulary.
+    void count(int id, Bayespam.MessageType type)
+    {
+        reserve(id);
+        if (type == Bayespam.MessageType.NORMAL)
+            ++countRegular[id];
+        else
+            ++countSpam[id];
+    }
+
+    /// Increase the counter of a word for the given message type by one
+    public void addWord(String word, Bayespam.MessageType type)
+    {
+        int id = add(word);
+        if (type == Bayespam.MessageType.NORMAL)
+            ++countRegular[id];
+        else
+            ++countSpam[id];
+    }
+
+    /// Increase the counter of a word given as the first length characters of a buffer by one
+    public void addWord(char[] word, int length, int hash, Bayespam.MessageType type)
+    {
+        int id = add(word, length, hash);
+        if (type == Bayespam.MessageType.NORMAL)
+            ++countRegular[id];
+        else
+            ++countSpam[id];
+    }
+
+    /// Add the given counts to a word
+    public void addCounts(String word, int regular, int spam)
+    {
+        int id = add(word);
+        countRegular[id] += regular;
+        countSpam[id] += spam;
+    }
+
+    /// Add all counts of another vocabulary to this one
+    public void merge(Vocabulary other)
+    {
+        int[] ids = terms.addAll(other.terms);
+        reserve(terms.size() - 1);
+        for (int id = 0; id < ids.length; ++id)
+        {
+            countRegular[ids[id]] += other.countRegular[id];
+            countSpam[ids[id]] += other.countSpam[id];
+        }
+    }
+
+    public void mergeCounts(WordCounts other)
+    {
+        merge((Vocabulary) other);
+    }
+
+    public Vocabulary toVocabulary(int minCount)
+    {
+        return minCount > 1 ? prune(minCount) : this;
+    }
+
+    /// A new vocabulary with only the terms that occur at least minCount times (regular and spam together),
+    /// and the parts of the n-grams among them with zero counts. The terms keep their order, but not their ids.
+    public Vocabulary prune(int minCount)
+    {
+        int size = terms.size();
+        boolean[] keep = new boolean[size];
+        for (int id = 0; id < size; ++id)
+            keep[id] = countRegular[id] + countSpam[id] >= minCount;
+        Vocabulary kept = new Vocabulary(size);
+        int[] ids = kept.terms.addAll(terms, keep);
+        kept.reserve(kept.size() - 1);
+        for (int id = 0; id < size; ++id)
+        {
+            if (keep[id])
+            {
+                kept.countRegular[ids[id]] = countRegular[id];
+                kept.countSpam[ids[id]] = countSpam[id];
+            }
+        }
+        return kept;
+    }
+
+    /// Allocate the log probability arrays, one entry for every word
+    public void allocateProbs()
+    {
+        logProbRegular = new double[size()];
+        logProbSpam = new double[size()];
+    }
+
+    // Whether a word equals the first length characters of a buffer
+    static boolean equals(String word, char[] chars, int length)
+    {
+        if (word.length() != length)
+            return false;
+        for (int i = 0; i < length; ++i)
+        {
+            if (word.charAt(i) != chars[i])
+                return false;
+        }
+        return true;
+    }
+
+    /// Make room in the count arrays for the given id, which may be one that was just added to the TermIndex
+    int reserve(int id)
+    {
+        if (id >= countRegular.length)
+        {
+            int capacity = Math.max(terms.capacity(), id + 1);
+            countRegular = Arrays.copyOf(countRegular, capacity);
+            countSpam = Arrays.copyOf(countSpam, capacity);
+        }
+        return id;
+    }
+}
@@ -0,0 +1,16 @@
+package bayespam;
+
+/// Where the words of the training messages are counted: exactly in a Vocabulary, or in bounded memory in
+/// a BoundedVocabulary or a LossyVocabulary. Every training thread counts in its own WordCounts, which are
+/// merged afterwards; a WordCounts is not thread safe.
+interface WordCounts
+{
+    /// Count a word given as the first length characters of a buffer, the hash must be its String hash code
+    void addWord(char[] word, int length, int hash, Bayespam.MessageType type);
+
+    /// Add the counts of another WordCounts of the same kind to this one
+    void mergeCounts(WordCounts other);
+
+    /// The counted words that occur at least minCount times, with their counts
+    Vocabulary toVocabulary(int minCount);
+}
@@ -0,0 +1,161 @@
+package bayespam;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/// Runs micro benchmarks the way a benchmark harness like JMH does, for a project without a build tool to
+/// pull one in: every benchmark is first run for a number of warmup iterations (so the JIT compiler has
+/// compiled and inlined the hot paths), then for a number of measured iterations of a fixed time each.
+///
+/// An iteration calls the benchmark until its time is up. The throughput of every measured iteration is kept
+/// and reported as mean and standard deviation, together with the time per operation, the bytes allocated
+/// per operation (from the thread allocation counter of the JVM, where there is one) and the number of
+/// garbage collections during the measured iterations. The results of the benchmarks are summed into a sink
+/// that is printed at the end, so the JIT compiler cannot remove the work as dead code.
+final class BenchmarkHarness
+{
+    /// One operation of a benchmark; the result must depend on all the work that is done
+    interface Benchmark
+    {
+        long run()
+        throws Exception;
+    }
+
+    private final int warmupIterations;
+    private final int iterations;
+    private final long iterationNanos;
+    private final List<Result> results = new ArrayList<>();
+
+    // The sum of all benchmark results
+    private long sink = 0;
+
+    BenchmarkHarness(int warmupIterations, int iterations, long iterationMillis)
+    {
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+        this.iterationNanos = iterationMillis * 1000000L;
+    }
+
+    /// Warm up and measure a benchmark, the result is kept for report()
+    void measure(String name, Benchmark benchmark)
+    throws Exception
+    {
+        for (int i = 0; i < warmupIterations; ++i)
+            iteration(benchmark);
+
+        long gcBefore = gcCount();
+        long bytesBefore = allocatedBytes();
+        long operations = 0;
+        long nanos = 0;
+        double[] throughput = new double[iterations];
+        for (int i = 0; i < iterations; ++i)
+        {
+            long start = System.nanoTime();
+            long count = iteration(benchmark);
+            long time = System.nanoTime() - start;
+            throughput[i] = count * 1e9 / time;
+            operations += count;
+            nanos += time;
+        }
+        long bytes = allocatedBytes() - bytesBefore;
+
+        Result result = new Result(name, throughput, (double) nanos / operations,
+        		bytesBefore < 0 ? Double.NaN : (double) bytes / operations, gcCount() - gcBefore);
+        results.add(result);
+        System.err.println("- " + name + ": " + String.format("%.1f", result.mean()) + " ops/s");
+    }
+
+    /// Print a table of all measured benchmarks
+    void report(PrintStream out)
+    {
+        out.println();
+        out.println(String.format("%-24s %6s %14s %12s %14s %14s %6s",
+        		"Benchmark", "Cnt", "ops/s", "error", "ns/op", "B/op", "GCs"));
+        for (Result result : results)
+        {
+            out.println(String.format("%-24s %6d %14.1f %12.1f %14.1f %14.1f %6d",
+            		result.name, result.throughput.length, result.mean(), result.stdev(),
+            		result.nanosPerOp, result.bytesPerOp, result.gcs));
+        }
+        out.println();
+        out.println("(sink " + sink + ")");
+    }
+
+    // Call a benchmark until the time of an iteration is up, the number of calls is returned
+    private long iteration(Benchmark benchmark)
+    throws Exception
+    {
+        long end = System.nanoTime() + iterationNanos;
+        long count = 0;
+        do
+        {
+            sink += benchmark.run();
+            ++count;
+        }
+        while (System.nanoTime() < end);
+        return count;
+    }
+
+    // Bytes allocated by this thread so far, or -1 if the JVM does not count them
+    private static long allocatedBytes()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+        {
+            com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+            if (counter.isThreadAllocatedMemorySupported() && counter.isThreadAllocatedMemoryEnabled())
+                return counter.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    // Number of garbage collections so far, by all collectors
+    private static long gcCount()
+    {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, collector.getCollectionCount());
+        return count;
+    }
+
+    private static final class Result
+    {
+        final String name;
+        final double[] throughput;
+        final double nanosPerOp;
+        final double bytesPerOp;
+        final long gcs;
+
+        Result(String name, double[] throughput, double nanosPerOp, double bytesPerOp, long gcs)
+        {
+            this.name = name;
+            this.throughput = throughput;
+            this.nanosPerOp = nanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+            this.gcs = gcs;
+        }
+
+        double mean()
+        {
+            double sum = 0;
+            for (double t : throughput)
+                sum += t;
+            return sum / throughput.length;
+        }
+
+        double stdev()
+        {
+            if (throughput.length < 2)
+                return 0;
+            double mean = mean();
+            double sum = 0;
+            for (double t : throughput)
+                sum += (t - mean) * (t - mean);
+            return Math.sqrt(sum / (throughput.length - 1));
+        }
+    }
+}
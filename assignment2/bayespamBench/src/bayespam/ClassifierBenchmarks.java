@@ -0,0 +1,333 @@
+package bayespam;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/// Micro benchmarks of the hot paths of the spam classifier: tokenizing, feature extraction, counting words
+/// into a vocabulary, computing the probabilities and classifying messages, for words and for bigrams. The
+/// benchmarks run on the training corpus of the bayespam project or on a synthetic corpus of any size, so a
+/// change to one of the hot paths can be measured in isolation (see BenchmarkHarness).
+///
+/// The benchmarks are in the bayespam package so they can use the package private parts of the classifier,
+/// but in a project of their own so they are not part of the classifier itself.
+public class ClassifierBenchmarks
+{
+    /// The settings of the bigram classifier (see BigramBayespam)
+    static final int BIGRAM_WORD_SIZE = 6;
+    static final int BIGRAM_MIN_COUNT = 8;
+
+    /// Margin of the early stopping benchmark
+    static final double MARGIN = 20;
+
+    // The corpus: the files and their text, regular messages first
+    private final File[] files;
+    private final String[] texts;
+    private final int nRegular;
+
+    // Message that the next operation of a per message benchmark uses
+    private int next = 0;
+
+    ClassifierBenchmarks(File corpus)
+    throws IOException
+    {
+        File[] regular = new File(corpus, "regular").listFiles();
+        File[] spam = new File(corpus, "spam").listFiles();
+        if (regular == null || spam == null)
+            throw new IOException("- Error: " + corpus + " does not contain the directories regular and spam");
+        nRegular = regular.length;
+        files = new File[regular.length + spam.length];
+        System.arraycopy(regular, 0, files, 0, regular.length);
+        System.arraycopy(spam, 0, files, regular.length, spam.length);
+        texts = new String[files.length];
+        for (int i = 0; i < files.length; ++i)
+            texts[i] = new String(Files.readAllBytes(files[i].toPath()), StandardCharsets.ISO_8859_1);
+    }
+
+    public static void main(String[] args)
+    throws Exception
+    {
+        /// Usage: ClassifierBenchmarks [flags] [benchmark name prefix ...]
+        /// Flags: -corpus <dir>      directory with regular/ and spam/ messages (default ../bayespam/train)
+        ///        -synthetic <n>     use a synthetic corpus of n messages instead
+        ///        -words <n>         words per synthetic message (default 300)
+        ///        -vocabulary <n>    words in the synthetic vocabulary (default 50000)
+        ///        -warmup <n>        warmup iterations per benchmark (default 5)
+        ///        -iterations <n>    measured iterations per benchmark (default 10)
+        ///        -time <ms>         time of an iteration (default 1000)
+        File corpus = new File("../bayespam/train");
+        int synthetic = 0;
+        int words = 300;
+        int vocabulary = 50000;
+        int warmup = 5;
+        int iterations = 10;
+        int time = 1000;
+        List<String> prefixes = new ArrayList<>();
+        for (int i = 0; i < args.length; ++i)
+        {
+            if (args[i].equals("-corpus") && i + 1 < args.length)
+                corpus = new File(args[++i]);
+            else if (args[i].equals("-synthetic") && i + 1 < args.length)
+                synthetic = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-words") && i + 1 < args.length)
+                words = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-vocabulary") && i + 1 < args.length)
+                vocabulary = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-warmup") && i + 1 < args.length)
+                warmup = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-iterations") && i + 1 < args.length)
+                iterations = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-time") && i + 1 < args.length)
+                time = Integer.parseInt(args[++i]);
+            else if (args[i].startsWith("-"))
+            {
+                System.out.println("- Error: unknown flag " + args[i] + "\n");
+                System.exit(1);
+            }
+            else
+                prefixes.add(args[i]);
+        }
+
+        File syntheticDir = null;
+        if (synthetic > 0)
+        {
+            syntheticDir = new SyntheticCorpus(synthetic, words, vocabulary).write();
+            corpus = syntheticDir;
+        }
+        try
+        {
+            ClassifierBenchmarks benchmarks = new ClassifierBenchmarks(corpus);
+            System.out.println("Corpus: " + corpus + " (" + benchmarks.files.length + " messages)");
+            BenchmarkHarness harness = new BenchmarkHarness(warmup, iterations, time);
+            benchmarks.run(harness, prefixes);
+            harness.report(System.out);
+        }
+        finally
+        {
+            if (syntheticDir != null)
+                SyntheticCorpus.delete(syntheticDir);
+        }
+    }
+
+    // Run the benchmarks whose names start with one of the prefixes (all of them without prefixes)
+    private void run(BenchmarkHarness harness, List<String> prefixes)
+    throws Exception
+    {
+        final Tokenizer tokenizer = new Tokenizer(Bayespam.wordSizeThreshold);
+        final Counter counter = new Counter();
+        if (selected("tokenize", prefixes))
+        {
+            harness.measure("tokenize", new BenchmarkHarness.Benchmark()
+            {
+                public long run()
+                {
+                    counter.count = 0;
+                    tokenizer.tokenize(nextText(), counter);
+                    return counter.count;
+                }
+            });
+        }
+
+        final FeatureExtractor headers = new FeatureExtractor(FeatureExtractor.HEADERS, Bayespam.wordSizeThreshold);
+        if (selected("extract.headers", prefixes))
+        {
+            harness.measure("extract.headers", new BenchmarkHarness.Benchmark()
+            {
+                public long run()
+                {
+                    counter.count = 0;
+                    headers.extract(nextText(), counter);
+                    return counter.count;
+                }
+            });
+        }
+
+        final int bigrams = FeatureExtractor.ngrams(2, 2);
+        final FeatureExtractor bigramExtractor = new FeatureExtractor(bigrams, BIGRAM_WORD_SIZE);
+        if (selected("extract.bigrams", prefixes))
+        {
+            harness.measure("extract.bigrams", new BenchmarkHarness.Benchmark()
+            {
+                public long run()
+                {
+                    counter.count = 0;
+                    bigramExtractor.extract(nextText(), counter);
+                    return counter.count;
+                }
+            });
+        }
+
+        /// One operation counts all messages of the corpus into a new vocabulary, like training does
+        final FeatureExtractor words = new FeatureExtractor(0, Bayespam.wordSizeThreshold);
+        if (selected("vocabulary.addWord", prefixes))
+        {
+            harness.measure("vocabulary.addWord", new BenchmarkHarness.Benchmark()
+            {
+                public long run()
+                {
+                    return count(words).size();
+                }
+            });
+        }
+        if (selected("vocabulary.bigram", prefixes))
+        {
+            harness.measure("vocabulary.bigram", new BenchmarkHarness.Benchmark()
+            {
+                public long run()
+                {
+                    return count(bigramExtractor).size();
+                }
+            });
+        }
+
+        final Vocabulary counted = count(words);
+        final double[] totals = totals(counted);
+        if (selected("probabilities", prefixes))
+        {
+            harness.measure("probabilities", new BenchmarkHarness.Benchmark()
+            {
+                public long run()
+                {
+                    Bayespam.computeProbabilities(counted, totals[0], totals[1]);
+                    return ScoringModel.freeze(counted, logPrior(nRegular), logPrior(files.length - nRegular),
+                    		0, Bayespam.wordSizeThreshold).size();
+                }
+            });
+        }
+
+        final SpamClassifier classifier = new SpamClassifier(train(words, 0, Bayespam.wordSizeThreshold, 1));
+        if (selected("classify.text", prefixes))
+        {
+            harness.measure("classify.text", new BenchmarkHarness.Benchmark()
+            {
+                public long run()
+                {
+                    return SpamClassifier.isSpam(classifier.classify(nextText())) ? 1 : 0;
+                }
+            });
+        }
+        if (selected("classify.file", prefixes))
+        {
+            harness.measure("classify.file", new BenchmarkHarness.Benchmark()
+            {
+                public long run()
+                throws IOException
+                {
+                    return SpamClassifier.isSpam(classifier.classify(nextFile())) ? 1 : 0;
+                }
+            });
+        }
+        if (selected("classify.bigram", prefixes))
+        {
+            final SpamClassifier bigramClassifier = new SpamClassifier(
+            		train(bigramExtractor, bigrams, BIGRAM_WORD_SIZE, BIGRAM_MIN_COUNT));
+            harness.measure("classify.bigram", new BenchmarkHarness.Benchmark()
+            {
+                public long run()
+                {
+                    return SpamClassifier.isSpam(bigramClassifier.classify(nextText())) ? 1 : 0;
+                }
+            });
+        }
+        if (selected("classify.early", prefixes))
+        {
+            final SpamClassifier early = new SpamClassifier(classifier.model(), MARGIN);
+            harness.measure("classify.early", new BenchmarkHarness.Benchmark()
+            {
+                public long run()
+                {
+                    return SpamClassifier.isSpam(early.classify(nextText())) ? 1 : 0;
+                }
+            });
+        }
+    }
+
+    private static boolean selected(String name, List<String> prefixes)
+    {
+        if (prefixes.isEmpty())
+            return true;
+        for (String prefix : prefixes)
+        {
+            if (name.startsWith(prefix))
+                return true;
+        }
+        return false;
+    }
+
+    // The next message, round robin over the corpus
+    private String nextText()
+    {
+        String text = texts[next];
+        next = (next + 1) % texts.length;
+        return text;
+    }
+
+    private File nextFile()
+    {
+        File file = files[next];
+        next = (next + 1) % files.length;
+        return file;
+    }
+
+    // Count the features of all messages of the corpus into a new vocabulary
+    private Vocabulary count(FeatureExtractor extractor)
+    {
+        final Vocabulary vocab = new Vocabulary();
+        for (int i = 0; i < texts.length; ++i)
+        {
+            final Bayespam.MessageType type = i < nRegular ? Bayespam.MessageType.NORMAL : Bayespam.MessageType.SPAM;
+            extractor.extract(texts[i], new Tokenizer.Sink()
+            {
+                public boolean word(char[] word, int length, int hash)
+                {
+                    vocab.addWord(word, length, hash, type);
+                    return true;
+                }
+            });
+        }
+        return vocab;
+    }
+
+    // Train a model on the corpus the way Bayespam.train() does, without reading the files again or printing
+    private ScoringModel train(FeatureExtractor extractor, int features, int wordSizeThreshold, int minCount)
+    {
+        Vocabulary vocab = count(extractor).toVocabulary(minCount);
+        double[] totals = totals(vocab);
+        Bayespam.computeProbabilities(vocab, totals[0], totals[1]);
+        return ScoringModel.freeze(vocab, logPrior(nRegular), logPrior(files.length - nRegular), features,
+        		wordSizeThreshold);
+    }
+
+    // The total number of regular and of spam words of a vocabulary
+    private static double[] totals(Vocabulary vocab)
+    {
+        double[] totals = new double[2];
+        for (int id = 0; id < vocab.size(); ++id)
+        {
+            totals[0] += vocab.countRegular[id];
+            totals[1] += vocab.countSpam[id];
+        }
+        return totals;
+    }
+
+    // Log of the a priori probability of a class with n messages
+    private double logPrior(int n)
+    {
+        return Math.log((double) n / files.length);
+    }
+
+    // Counts the words it is given
+    private static final class Counter implements Tokenizer.Sink
+    {
+        long count;
+
+        public boolean word(char[] word, int length, int hash)
+        {
+            ++count;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package bayespam;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/// Puts a ClassifierServer under load: a number of clients post messages of a labelled corpus to the server
+/// as fast as they can for a while, then the throughput, the latencies (as seen by the clients, so including
+/// the network and the queueing in the server) and the accuracy of the answers are printed. Every client runs
+/// on a virtual thread when the JVM has them, so tens of thousands of concurrent clients can be simulated.
+public class LoadGenerator
+{
+    /// Clients that are simulated when the JVM has no virtual threads, at most
+    static final int MAX_PLATFORM_CLIENTS = 1024;
+
+    // The messages and whether they are spam
+    private final byte[][] messages;
+    private final boolean[] spam;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    LoadGenerator(File corpus)
+    throws IOException
+    {
+        File[] regular = new File(corpus, "regular").listFiles();
+        File[] spamFiles = new File(corpus, "spam").listFiles();
+        if (regular == null || spamFiles == null)
+            throw new IOException("- Error: " + corpus + " does not contain the directories regular and spam");
+        messages = new byte[regular.length + spamFiles.length][];
+        spam = new boolean[messages.length];
+        for (int i = 0; i < messages.length; ++i)
+        {
+            File file = i < regular.length ? regular[i] : spamFiles[i - regular.length];
+            messages[i] = Files.readAllBytes(file.toPath());
+            spam[i] = i >= regular.length;
+        }
+    }
+
+    public static void main(String[] args)
+    throws Exception
+    {
+        /// Usage: LoadGenerator [flags]
+        /// Flags: -url <url>         classify endpoint (default http://localhost:8025/classify)
+        ///        -corpus <dir>      directory with regular/ and spam/ messages (default ../bayespam/test)
+        ///        -clients <n>       number of concurrent clients (default 1000)
+        ///        -time <s>          seconds of load (default 10)
+        ///        -warmup <s>        seconds of load before measuring (default 3)
+        URL url = new URL("http://localhost:" + ClassifierServer.PORT + "/classify");
+        File corpus = new File("../bayespam/test");
+        int clients = 1000;
+        int seconds = 10;
+        int warmup = 3;
+        for (int i = 0; i < args.length; ++i)
+        {
+            if (args[i].equals("-url") && i + 1 < args.length)
+                url = new URL(args[++i]);
+            else if (args[i].equals("-corpus") && i + 1 < args.length)
+                corpus = new File(args[++i]);
+            else if (args[i].equals("-clients") && i + 1 < args.length)
+                clients = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-time") && i + 1 < args.length)
+                seconds = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-warmup") && i + 1 < args.length)
+                warmup = Integer.parseInt(args[++i]);
+            else
+            {
+                System.out.println("- Error: unknown argument " + args[i] + "\n");
+                System.exit(1);
+            }
+        }
+
+        LoadGenerator generator = new LoadGenerator(corpus);
+        ExecutorService threads = ClassifierServer.newVirtualThreadExecutor();
+        if (threads == null)
+        {
+            if (clients > MAX_PLATFORM_CLIENTS)
+            {
+                System.out.println("No virtual threads, using " + MAX_PLATFORM_CLIENTS + " clients");
+                clients = MAX_PLATFORM_CLIENTS;
+            }
+            threads = Executors.newFixedThreadPool(clients);
+        }
+        try
+        {
+            if (warmup > 0)
+            {
+                System.out.println("Warming up for " + warmup + " s");
+                generator.run(url, clients, warmup, threads);
+            }
+            System.out.println("Running " + clients + " clients for " + seconds + " s");
+            generator.run(url, clients, seconds, threads).print(seconds);
+        }
+        finally
+        {
+            threads.shutdownNow();
+        }
+    }
+
+    // Let the clients post messages until the time is up, the results of all clients are combined
+    private Result run(final URL url, int clients, int seconds, ExecutorService threads)
+    throws Exception
+    {
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        List<Future<Result>> results = new ArrayList<>();
+        for (int c = 0; c < clients; ++c)
+        {
+            results.add(threads.submit(new Callable<Result>()
+            {
+                public Result call()
+                {
+                    Result result = new Result();
+                    while (System.nanoTime() < end)
+                    {
+                        int message = Math.floorMod(next.getAndIncrement(), messages.length);
+                        long start = System.nanoTime();
+                        try
+                        {
+                            boolean answer = post(url, messages[message]);
+                            result.add(System.nanoTime() - start, answer == spam[message]);
+                        }
+                        catch (IOException e)
+                        {
+                            ++result.errors;
+                        }
+                    }
+                    return result;
+                }
+            }));
+        }
+        Result total = new Result();
+        for (Future<Result> result : results)
+            total.merge(result.get());
+        return total;
+    }
+
+    // Post a message, the answer is whether the server says it is spam
+    private static boolean post(URL url, byte[] message)
+    throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(message.length);
+        OutputStream out = connection.getOutputStream();
+        out.write(message);
+        out.close();
+        if (connection.getResponseCode() != 200)
+            throw new IOException("status " + connection.getResponseCode());
+        InputStream in = connection.getInputStream();
+        byte[] answer = new byte[64];
+        int size = 0;
+        int n;
+        while ((n = in.read(answer, size, answer.length - size)) > 0)
+            size += n;
+        in.close();
+        return size >= 4 && new String(answer, 0, 4, "US-ASCII").equals("spam");
+    }
+
+    // The latencies and answers of one or more clients
+    private static final class Result
+    {
+        long[] latencies = new long[1024];
+        int count;
+        long correct;
+        long errors;
+
+        void add(long nanos, boolean isCorrect)
+        {
+            if (count == latencies.length)
+                latencies = Arrays.copyOf(latencies, count * 2);
+            latencies[count++] = nanos;
+            if (isCorrect)
+                ++correct;
+        }
+
+        void merge(Result other)
+        {
+            if (count + other.count > latencies.length)
+                latencies = Arrays.copyOf(latencies, count + other.count);
+            System.arraycopy(other.latencies, 0, latencies, count, other.count);
+            count += other.count;
+            correct += other.correct;
+            errors += other.errors;
+        }
+
+        void print(int seconds)
+        {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            System.out.println(String.format("requests:   %d (%.0f/s), %d errors", count, (double) count / seconds, errors));
+            if (count == 0)
+                return;
+            System.out.println(String.format("latency:    p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms",
+            		percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99), sorted[count - 1] / 1e6));
+            System.out.println(String.format("accuracy:   %.2f%%", 100.0 * correct / count));
+        }
+
+        private static double percentile(long[] sorted, double fraction)
+        {
+            return sorted[Math.max(0, (int) Math.ceil(fraction * sorted.length) - 1)] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package bayespam;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/// Writes a corpus of made up messages for the benchmarks, so they can be run at any size. Words are drawn
+/// from a Zipf distribution over a vocabulary of made up words, like the words of real mail: a few words are
+/// very common and most words are rare. Spam messages draw from the same distribution with the ranks shifted,
+/// so the classes share most of their words but differ in which ones are common. Every message has a few
+/// header lines and lines of about ten words. The corpus is the same for the same settings (fixed seed).
+final class SyntheticCorpus
+{
+    private static final long SEED = 20161018L;
+
+    // Words per line of a message body
+    private static final int LINE_WORDS = 10;
+
+    private final int messages;
+    private final int wordsPerMessage;
+    private final String[] words;
+
+    // Cumulative Zipf probabilities of the ranks
+    private final double[] cumulative;
+
+    SyntheticCorpus(int messages, int wordsPerMessage, int vocabularySize)
+    {
+        this.messages = messages;
+        this.wordsPerMessage = wordsPerMessage;
+        Random random = new Random(SEED);
+        words = new String[vocabularySize];
+        for (int i = 0; i < vocabularySize; ++i)
+            words[i] = makeWord(random, i);
+        cumulative = new double[vocabularySize];
+        double sum = 0;
+        for (int rank = 0; rank < vocabularySize; ++rank)
+        {
+            sum += 1.0 / (rank + 1);
+            cumulative[rank] = sum;
+        }
+        for (int rank = 0; rank < vocabularySize; ++rank)
+            cumulative[rank] /= sum;
+    }
+
+    /// Write the corpus to a new temporary directory with the subdirectories regular and spam, each with
+    /// half of the messages
+    File write()
+    throws IOException
+    {
+        File dir = Files.createTempDirectory("bayespam-bench").toFile();
+        Random random = new Random(SEED);
+        writeMessages(new File(dir, "regular"), random, 0);
+        writeMessages(new File(dir, "spam"), random, words.length / 10);
+        return dir;
+    }
+
+    /// Delete a directory written by write()
+    static void delete(File dir)
+    {
+        File[] files = dir.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+                delete(file);
+        }
+        dir.delete();
+    }
+
+    private void writeMessages(File dir, Random random, int shift)
+    throws IOException
+    {
+        if (!dir.mkdir())
+            throw new IOException("- Error: cannot create directory " + dir);
+        for (int m = 0; m < messages / 2; ++m)
+        {
+            PrintWriter out = new PrintWriter(new File(dir, "msg" + m + ".txt"), StandardCharsets.ISO_8859_1.name());
+            try
+            {
+                out.println("From: " + word(random, shift) + "@" + word(random, shift) + ".com");
+                out.println("Subject: " + word(random, shift) + " " + word(random, shift) + " " + word(random, shift));
+                out.println();
+                for (int w = 0; w < wordsPerMessage; ++w)
+                {
+                    out.print(word(random, shift));
+                    out.print((w + 1) % LINE_WORDS == 0 ? "\n" : " ");
+                }
+                out.println();
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+    }
+
+    // A word drawn from the Zipf distribution, with its rank shifted
+    private String word(Random random, int shift)
+    {
+        int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+        if (rank < 0)
+            rank = -rank - 1;
+        return words[(Math.min(rank, words.length - 1) + shift) % words.length];
+    }
+
+    // A word of 3 to 12 random letters followed by its index in letters (the tokenizer drops digits), so all
+    // words are different
+    private static String makeWord(Random random, int index)
+    {
+        int length = 3 + random.nextInt(10);
+        StringBuilder word = new StringBuilder(length + 8);
+        for (int i = 0; i < length; ++i)
+            word.append((char) ('a' + random.nextInt(26)));
+        do
+        {
+            word.append((char) ('a' + index % 26));
+            index /= 26;
+        }
+        while (index > 0);
+        return word.toString();
+    }
+}